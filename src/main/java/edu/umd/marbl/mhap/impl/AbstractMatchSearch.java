@@ -137,22 +137,28 @@ public abstract class AbstractMatchSearch
 				public void run()
 				{
 					List<MatchResult> localMatches = new ArrayList<MatchResult>();
+					List<SequenceSketch> batch = new ArrayList<SequenceSketch>(getQueryBatchSize());
 
 					// get next sequence
 					SequenceId nextSequence = seqList.poll();
 
 					while (nextSequence != null)
 					{
-						SequenceSketch sequenceHashes = getStoredSequenceHash(nextSequence);
+						// collect the next batch of queries
+						batch.clear();
+						while (nextSequence != null && batch.size() < getQueryBatchSize())
+						{
+							batch.add(getStoredSequenceHash(nextSequence));
+
+							// get next sequence
+							nextSequence = seqList.poll();
+						}
 
 						// only search the forward sequences
-						localMatches.addAll(findMatches(sequenceHashes, true));
+						localMatches.addAll(findMatches(batch, true));
 
 						// record search
-						AbstractMatchSearch.this.sequencesSearched.getAndIncrement();
-
-						// get next sequence
-						nextSequence = seqList.poll();
+						AbstractMatchSearch.this.sequencesSearched.getAndAdd(batch.size());
 
 						// output stored results
 						if (nextSequence == null || localMatches.size() >= NUM_ELEMENTS_PER_OUTPUT)
@@ -200,6 +206,19 @@ public abstract class AbstractMatchSearch
 
 	protected abstract List<MatchResult> findMatches(SequenceSketch hashes, boolean toSelf);
 
+	/**
+	 * Searches a batch of queries at once. Implementations that can share the lookups between the queries should
+	 * override this, together with {@link #getQueryBatchSize()}.
+	 */
+	protected List<MatchResult> findMatches(List<SequenceSketch> batch, boolean toSelf)
+	{
+		List<MatchResult> matches = new ArrayList<MatchResult>();
+		for (SequenceSketch hashes : batch)
+			matches.addAll(findMatches(hashes, toSelf));
+
+		return matches;
+	}
+
 	public ArrayList<MatchResult> findMatches(final SequenceSketchStreamer data) throws IOException
 	{
 		// figure out number of cores
@@ -217,6 +236,7 @@ public abstract class AbstractMatchSearch
 				public void run()
 				{
 					List<MatchResult> localMatches = new ArrayList<MatchResult>();
+					List<SequenceSketch> batch = new ArrayList<SequenceSketch>(getQueryBatchSize());
 
 					try
 					{
@@ -226,14 +246,21 @@ public abstract class AbstractMatchSearch
 
 						while (sequenceHashes != null)
 						{
+							// collect the next batch of queries
+							batch.clear();
+							while (sequenceHashes != null && batch.size() < getQueryBatchSize())
+							{
+								batch.add(sequenceHashes);
+
+								// get the sequence hashes
+								sequenceHashes = data.dequeue(true, buf);
+							}
+
 							// only search the forward sequences
-							localMatches.addAll(findMatches(sequenceHashes, false));
+							localMatches.addAll(findMatches(batch, false));
 
 							// record search
-							AbstractMatchSearch.this.sequencesSearched.getAndIncrement();
-
-							// get the sequence hashes
-							sequenceHashes = data.dequeue(true, buf);
+							AbstractMatchSearch.this.sequencesSearched.getAndAdd(batch.size());
 
 							// output stored results
 							if (sequenceHashes == null || localMatches.size() >= NUM_ELEMENTS_PER_OUTPUT)
@@ -296,6 +323,14 @@ public abstract class AbstractMatchSearch
 		}
 	}
 
+	/**
+	 * @return the number of queries passed to {@link #findMatches(List, boolean)} at once
+	 */
+	protected int getQueryBatchSize()
+	{
+		return 1;
+	}
+
 	public long getMatchesProcessed()
 	{
 		return this.matchesProcessed.get();
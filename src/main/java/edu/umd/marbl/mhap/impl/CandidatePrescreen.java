@@ -0,0 +1,148 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+/**
+ * Bounds the identity score a candidate can reach in the second stage, from the number of min-mers it shares with the
+ * query and the two read lengths. The min-mer count estimates the Jaccard similarity of the whole reads, and so the
+ * number of shared k-mers. All of them must fall inside the overlap, so an overlap of at least the minimum length
+ * can at most reach the identity of the shared k-mers packed into it. An overlap can also be no longer than the
+ * shorter read, which bounds the identity from below. The count is widened by {@link #NUM_SIGMAS} standard
+ * deviations in either direction, to allow for the sampling error of the min-mers. The shared fraction is one of
+ * min-mer k-mers, so it is also converted to an identity with the min-mer k-mer size.
+ */
+public final class CandidatePrescreen
+{
+	private final double acceptIdentity;
+	private final double acceptScore;
+	private final int kmerSize;
+	private final int minOverlapKmers;
+
+	private static final double NUM_SIGMAS = 3.0;
+
+	/**
+	 * @param kmerSize
+	 *            the k-mer size of the min-mers
+	 * @param acceptScore
+	 *            the identity score needed to pass the second stage
+	 * @param minOverlap
+	 *            overlaps shorter than this are not needed, 0 disables the rejection
+	 * @param acceptIdentity
+	 *            candidates with an identity lower bound of at least this are accepted without the second stage, 0
+	 *            disables the fast acceptance
+	 */
+	public CandidatePrescreen(int kmerSize, double acceptScore, int minOverlap, double acceptIdentity)
+	{
+		this.kmerSize = kmerSize;
+		this.acceptScore = acceptScore;
+		this.minOverlapKmers = Math.max(0, minOverlap - kmerSize + 1);
+		this.acceptIdentity = acceptIdentity;
+	}
+	
+	/**
+	 * @return the identity score to report without the second stage, or 0 if the candidate must be compared
+	 */
+	public double acceptedScore(int count, int numTables, int bandSize, int minHashBits, int length1, int length2)
+	{
+		if (this.acceptIdentity <= 0.0)
+			return 0.0;
+		
+		int numKmers1 = numKmers(length1);
+		int numKmers2 = numKmers(length2);
+		
+		//the overlap can be no longer than the shorter read
+		double shared = estimateShared(count - NUM_SIGMAS * Math.sqrt(count), numTables, bandSize, minHashBits, numKmers1, numKmers2);
+		double identity = sharedToIdentity(shared, Math.min(numKmers1, numKmers2));
+		
+		if (identity < this.acceptIdentity)
+			return 0.0;
+		
+		return identity;
+	}
+	
+	private double estimateShared(double count, int numTables, int bandSize, int minHashBits, int numKmers1, int numKmers2)
+	{
+		if (count <= 0.0 || numTables <= 0)
+			return 0.0;
+		
+		//a band is shared with the probability of all its min-mers being shared
+		double jaccard = Math.min(1.0, count / (double) numTables);
+		if (bandSize > 1)
+			jaccard = Math.pow(jaccard, 1.0 / (double) bandSize);
+		
+		//b-bit min-mers of unrelated k-mers collide with probability 2^-b, same correction as MinHashSketch.jaccard
+		if (minHashBits < 32)
+		{
+			double collisionProb = 1.0 / (double) (1L << minHashBits);
+			jaccard = Math.max(0.0, (jaccard - collisionProb) / (1.0 - collisionProb));
+			if (jaccard <= 0.0)
+				return 0.0;
+		}
+		
+		double shared = jaccard * (double) (numKmers1 + numKmers2) / (1.0 + jaccard);
+		
+		return Math.min(shared, (double) Math.min(numKmers1, numKmers2));
+	}
+
+	private int numKmers(int length)
+	{
+		return Math.max(1, length - this.kmerSize + 1);
+	}
+	
+	/**
+	 * @return true if the candidate cannot reach the accept score in an overlap of at least the minimum length
+	 */
+	public boolean rejects(int count, int numTables, int bandSize, int minHashBits, int length1, int length2)
+	{
+		if (this.minOverlapKmers <= 0)
+			return false;
+		
+		int numKmers1 = numKmers(length1);
+		int numKmers2 = numKmers(length2);
+		
+		//the shortest overlap that holds the shared k-mers gives the best identity
+		double shared = estimateShared(count + NUM_SIGMAS * Math.sqrt(count) + NUM_SIGMAS, numTables, bandSize, minHashBits, numKmers1, numKmers2);
+		double overlap = Math.max(shared, (double) Math.min(this.minOverlapKmers, Math.min(numKmers1, numKmers2)));
+		
+		return sharedToIdentity(shared, overlap) < this.acceptScore;
+	}
+	
+	/**
+	 * Same identity as {@link edu.umd.marbl.mhap.sketch.BottomOverlapSketch#jaccardToIdentity(double, int)}, for an
+	 * overlap of the given number of k-mers on both reads.
+	 */
+	private double sharedToIdentity(double shared, double overlap)
+	{
+		if (shared <= 0.0 || overlap <= 0.0)
+			return 0.0;
+		
+		return Math.pow(Math.min(1.0, shared / overlap), 1.0 / (double) this.kmerSize);
+	}
+}
@@ -29,12 +29,14 @@
  */
 package edu.umd.marbl.mhap.impl;
 
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.Locale;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
+import edu.umd.marbl.mhap.utils.PackedSequence;
 import edu.umd.marbl.mhap.utils.Utils;
 
 public class FastaData implements Cloneable
@@ -124,7 +126,7 @@ public class FastaData implements Cloneable
 
 	private boolean enqueueNextSequenceInFile() throws IOException
 	{
-		StringBuilder fastaSeq = new StringBuilder();
+		ByteArrayList fastaSeq = new ByteArrayList();
 		String header = null;
 		long index = -1 - this.offset;
 		
@@ -162,8 +164,10 @@ public class FastaData implements Cloneable
 			{
 				if (this.lastLine!=null && !this.lastLine.startsWith(">"))
 				{
-					// append the last line
-					fastaSeq.append(this.lastLine);
+					// append the encoded bases of the last line
+					for (int iter = 0; iter < this.lastLine.length(); iter++)
+						fastaSeq.add(PackedSequence.encode(this.lastLine.charAt(iter)));
+					
 					this.lastLine = this.fileReader.readLine();
 				}
 				else
@@ -177,12 +181,11 @@ public class FastaData implements Cloneable
 					break;
 			}
 
-			if (fastaSeq.length()>0)
+			if (!fastaSeq.isEmpty())
 				index = this.numberProcessed.incrementAndGet();			
 		}			
 		
-		String fastaSeqSring = fastaSeq.toString();
-		if (!fastaSeqSring.isEmpty())
+		if (!fastaSeq.isEmpty())
 		{
 			//generate sequence id
 			SequenceId id;
@@ -191,7 +194,7 @@ public class FastaData implements Cloneable
 			else
 				id = new SequenceId(index + this.offset);
 
-			Sequence seq = new Sequence(fastaSeq.toString().toUpperCase(Locale.ENGLISH), id);
+			Sequence seq = new Sequence(new PackedSequence(fastaSeq.elements(), fastaSeq.size()), id);
 
 			// enqueue sequence
 			this.sequenceList.add(seq);
@@ -0,0 +1,210 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import edu.umd.marbl.mhap.utils.Utils;
+
+/**
+ * Index file stored by {@link MinHashSearch#writeIndex(String, IndexSettings)}. A header is followed by the posting tables, and by the
+ * sketches in ordinal order. The tables can be mapped selectively, so that several processes can each serve a range of
+ * the tables of the same file.
+ */
+final class IndexFile
+{
+	private final int bandSize;
+	private final boolean canonical;
+	private final int numSequences;
+	private final SequenceSketch[] sequences;
+	private final IndexSettings settings;
+	private final PostingTable[] tables;
+
+	private static final long INDEX_FILE_MAGIC = 0x4D484150494E4458L; // "MHAPINDX"
+	private static final int INDEX_FILE_VERSION = 5;
+	private static final long MIN_FILE_LENGTH = 72L;
+
+	private static int byteOrderId(ByteOrder order)
+	{
+		return order == ByteOrder.LITTLE_ENDIAN ? 1 : 0;
+	}
+
+	/**
+	 * @param fromTable
+	 *            first table to map
+	 * @param toTable
+	 *            table after the last table to map, clipped to the number of tables in the file
+	 * @param readSequences
+	 *            if false, the sketches are not read
+	 */
+	public static IndexFile read(String file, int fromTable, int toTable, boolean readSequences) throws IOException
+	{
+		try (RandomAccessFile input = new RandomAccessFile(file, "r"))
+		{
+			if (input.length() < MIN_FILE_LENGTH || input.readLong() != INDEX_FILE_MAGIC)
+				throw new MhapRuntimeException("File "+file+" is not an MHAP index file.");
+			
+			int version = input.readInt();
+			if (version != INDEX_FILE_VERSION)
+				throw new MhapRuntimeException("Unsupported index file version "+version+", expected version "+INDEX_FILE_VERSION+".");
+			
+			// the tables are mapped in the native byte order
+			if (input.readInt() != byteOrderId(ByteOrder.nativeOrder()))
+				throw new MhapRuntimeException("Index file "+file+" was stored on a machine with a different byte order.");
+			
+			int bandSize = input.readInt();
+			int numTables = input.readInt();
+			int numSequences = input.readInt();
+			boolean canonical = input.readInt() != 0;
+			IndexSettings settings = IndexSettings.read(input);
+			
+			// map the requested tables, and skip over the rest
+			FileChannel channel = input.getChannel();
+			long position = input.getFilePointer();
+			PostingTable[] tables = new PostingTable[numTables];
+			for (int iter = 0; iter < numTables; iter++)
+			{
+				if (iter >= fromTable && iter < toTable)
+				{
+					tables[iter] = PostingTable.map(channel, position);
+					position += tables[iter].sizeInBytes();
+				}
+				else
+					position += PostingTable.byteSize(channel, position);
+			}
+			
+			if (!readSequences)
+				return new IndexFile(bandSize, canonical, settings, numSequences, tables, null);
+			
+			// read the sketches that follow the tables
+			channel.position(position);
+			DataInputStream sketchInput = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), Utils.BUFFER_BYTE_SIZE));
+			SequenceSketch[] sequences = new SequenceSketch[numSequences];
+			for (int iter = 0; iter < numSequences; iter++)
+			{
+				// skip the record size, it is only needed by readers that do not parse the sketch
+				sketchInput.readInt();
+				
+				sequences[iter] = SequenceSketch.fromByteStream(sketchInput, 0);
+				if (sequences[iter] == null)
+					throw new MhapRuntimeException("Unexpected end of index file "+file+".");
+			}
+			
+			return new IndexFile(bandSize, canonical, settings, numSequences, tables, sequences);
+		}
+	}
+	
+	public static void write(String file, int bandSize, boolean canonical, IndexSettings settings, PostingTable[] tables, SequenceSketch[] sequences) throws IOException
+	{
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), Utils.BUFFER_BYTE_SIZE)))
+		{
+			output.writeLong(INDEX_FILE_MAGIC);
+			output.writeInt(INDEX_FILE_VERSION);
+			output.writeInt(byteOrderId(ByteOrder.nativeOrder()));
+			output.writeInt(bandSize);
+			output.writeInt(tables.length);
+			output.writeInt(sequences.length);
+			output.writeInt(canonical ? 1 : 0);
+			settings.write(output);
+			
+			for (PostingTable table : tables)
+				table.write(output);
+			
+			// store in ordinal order, since the tables refer to the sketches by ordinal
+			for (SequenceSketch sketch : sequences)
+			{
+				byte[] byteArray = sketch.getAsByteArray();
+				output.writeInt(byteArray.length);
+				output.write(byteArray);
+			}
+		}
+	}
+	
+	private IndexFile(int bandSize, boolean canonical, IndexSettings settings, int numSequences, PostingTable[] tables, SequenceSketch[] sequences)
+	{
+		this.bandSize = bandSize;
+		this.canonical = canonical;
+		this.settings = settings;
+		this.numSequences = numSequences;
+		this.tables = tables;
+		this.sequences = sequences;
+	}
+	
+	public int getBandSize()
+	{
+		return this.bandSize;
+	}
+	
+	/**
+	 * @return true if the index stores one sketch of canonical k-mers per sequence, instead of a sketch per strand
+	 */
+	public boolean isCanonical()
+	{
+		return this.canonical;
+	}
+	
+	/**
+	 * @return the sketch settings the index was built with
+	 */
+	public IndexSettings getSettings()
+	{
+		return this.settings;
+	}
+	
+	public int getNumSequences()
+	{
+		return this.numSequences;
+	}
+	
+	/**
+	 * @return the sketches in ordinal order, or null if they were not read
+	 */
+	public SequenceSketch[] getSequences()
+	{
+		return this.sequences;
+	}
+	
+	/**
+	 * @return the tables of the file, with null for the tables that were not mapped
+	 */
+	public PostingTable[] getTables()
+	{
+		return this.tables;
+	}
+}
@@ -0,0 +1,118 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Sketch settings stored in the header of an index file. The band keys of the stored sequences depend on them, so
+ * queries sketched with different settings would silently miss their overlaps.
+ */
+public final class IndexSettings
+{
+	private final long filterFingerprint;
+	private final int kmerSize;
+	private final boolean legacyKmerHash;
+	private final int minHashBits;
+	private final int minHashMode;
+	private final int numHashes;
+	private final int orderedKmerSize;
+	private final double repeatWeight;
+
+	static IndexSettings read(DataInput input) throws IOException
+	{
+		int kmerSize = input.readInt();
+		int orderedKmerSize = input.readInt();
+		int numHashes = input.readInt();
+		int minHashMode = input.readInt();
+		int minHashBits = input.readInt();
+		boolean legacyKmerHash = input.readInt() != 0;
+		double repeatWeight = input.readDouble();
+		long filterFingerprint = input.readLong();
+		
+		return new IndexSettings(kmerSize, orderedKmerSize, numHashes, minHashMode, minHashBits, legacyKmerHash, repeatWeight, filterFingerprint);
+	}
+
+	/**
+	 * @param filterFingerprint
+	 *            the fingerprint of the k-mer filter, see {@link edu.umd.marbl.mhap.sketch.FrequencyCounts#getFingerprint()},
+	 *            or 0 if there is no filter
+	 */
+	public IndexSettings(int kmerSize, int orderedKmerSize, int numHashes, int minHashMode, int minHashBits, boolean legacyKmerHash,
+			double repeatWeight, long filterFingerprint)
+	{
+		this.kmerSize = kmerSize;
+		this.orderedKmerSize = orderedKmerSize;
+		this.numHashes = numHashes;
+		this.minHashMode = minHashMode;
+		this.minHashBits = minHashBits;
+		this.legacyKmerHash = legacyKmerHash;
+		this.repeatWeight = repeatWeight;
+		this.filterFingerprint = filterFingerprint;
+	}
+	
+	/**
+	 * @throws MhapRuntimeException
+	 *             if the settings do not match the ones stored in the index file
+	 */
+	public void checkMatches(IndexSettings stored, String file)
+	{
+		checkSetting("-k", this.kmerSize, stored.kmerSize, file);
+		checkSetting("--ordered-kmer-size", this.orderedKmerSize, stored.orderedKmerSize, file);
+		checkSetting("--num-hashes", this.numHashes, stored.numHashes, file);
+		checkSetting("--minhash-mode", this.minHashMode, stored.minHashMode, file);
+		checkSetting("--min-hash-bits", this.minHashBits, stored.minHashBits, file);
+		checkSetting("--legacy-kmer-hash", this.legacyKmerHash, stored.legacyKmerHash, file);
+		checkSetting("--repeat-weight", this.repeatWeight, stored.repeatWeight, file);
+		
+		if (this.filterFingerprint != stored.filterFingerprint)
+			throw new MhapRuntimeException("Index file "+file+" must be loaded with the same k-mer filter (-f) and filter settings it was built with.");
+	}
+	
+	private static void checkSetting(String option, Object value, Object storedValue, String file)
+	{
+		if (!value.equals(storedValue))
+			throw new MhapRuntimeException("Index file "+file+" was built with "+option+" "+storedValue+", but "+value+" is set.");
+	}
+	
+	void write(DataOutput output) throws IOException
+	{
+		output.writeInt(this.kmerSize);
+		output.writeInt(this.orderedKmerSize);
+		output.writeInt(this.numHashes);
+		output.writeInt(this.minHashMode);
+		output.writeInt(this.minHashBits);
+		output.writeInt(this.legacyKmerHash ? 1 : 0);
+		output.writeDouble(this.repeatWeight);
+		output.writeLong(this.filterFingerprint);
+	}
+}
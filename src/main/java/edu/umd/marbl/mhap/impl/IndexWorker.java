@@ -0,0 +1,191 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.umd.marbl.mhap.utils.DenseHitCounter;
+import edu.umd.marbl.mhap.utils.Utils;
+
+/**
+ * Serves a range of the tables of an index file over a socket, so that an index larger than the memory of one process
+ * can be split between several worker processes. The worker first sends the layout and the sketch settings of its
+ * index, so that the coordinator can check that it loaded the same index. For every query of a batch the worker answers the number of
+ * stop-listed tables, followed by the (ordinal, count) pairs of the stored sequences hit in its tables. The second stage
+ * is left to the coordinating {@link MinHashSearch}.
+ */
+public final class IndexWorker
+{
+	private final int bandSize;
+	private final boolean canonical;
+	private final int fromTable;
+	private final int numSequences;
+	private final IndexSettings settings;
+	private final PostingTable[] tables;
+	private final int toTable;
+
+	public IndexWorker(String file, int fromTable, int toTable) throws IOException
+	{
+		IndexFile index = IndexFile.read(file, fromTable, toTable, false);
+		
+		this.tables = index.getTables();
+		this.numSequences = index.getNumSequences();
+		this.bandSize = index.getBandSize();
+		this.canonical = index.isCanonical();
+		this.settings = index.getSettings();
+		this.fromTable = Math.max(0, fromTable);
+		this.toTable = Math.min(toTable, this.tables.length);
+		
+		if (this.fromTable >= this.toTable)
+			throw new MhapRuntimeException("Table range ["+fromTable+","+toTable+") does not contain any of the "+this.tables.length+" tables of the index.");
+	}
+
+	private void countHits(int[] keys, DenseHitCounter counter, DataOutputStream output) throws IOException
+	{
+		int skippedTables = 0;
+		for (int table = this.fromTable; table < this.toTable; table++)
+		{
+			PostingTable currHash = this.tables[table];
+			int bucket = currHash.find(keys[table - this.fromTable]);
+			if (bucket < 0)
+				continue;
+			
+			int start = currHash.bucketStart(bucket);
+			int end = currHash.bucketEnd(bucket);
+			
+			// the bucket is on the repeat stop-list
+			if (start == end)
+			{
+				skippedTables++;
+				continue;
+			}
+			
+			for (int index = start; index < end; index++)
+				counter.addHit(currHash.getPosting(index));
+		}
+		
+		output.writeInt(skippedTables);
+		output.writeInt(counter.numTouched());
+		for (int iter = 0; iter < counter.numTouched(); iter++)
+		{
+			int ordinal = counter.getTouched(iter);
+			output.writeInt(ordinal);
+			output.writeInt(counter.getCount(ordinal));
+		}
+		
+		counter.clear();
+	}
+
+	private void handleConnection(Socket socket)
+	{
+		try (Socket connection = socket)
+		{
+			connection.setTcpNoDelay(true);
+			DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream(), Utils.BUFFER_BYTE_SIZE));
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), Utils.BUFFER_BYTE_SIZE));
+			
+			output.writeInt(this.tables.length);
+			output.writeInt(this.numSequences);
+			output.writeInt(this.fromTable);
+			output.writeInt(this.toTable);
+			output.writeInt(this.bandSize);
+			output.writeBoolean(this.canonical);
+			this.settings.write(output);
+			output.flush();
+			
+			DenseHitCounter counter = new DenseHitCounter(this.numSequences);
+			int numKeys = this.toTable - this.fromTable;
+			while (true)
+			{
+				int numQueries;
+				try
+				{
+					numQueries = input.readInt();
+				}
+				catch (EOFException e)
+				{
+					// the coordinator is done
+					return;
+				}
+				
+				// read the whole batch before answering, so the coordinator never blocks on sending
+				int[][] keys = new int[numQueries][numKeys];
+				for (int query = 0; query < numQueries; query++)
+					for (int iter = 0; iter < numKeys; iter++)
+						keys[query][iter] = input.readInt();
+				
+				for (int query = 0; query < numQueries; query++)
+					countHits(keys[query], counter, output);
+				
+				output.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Lost connection to the coordinator: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Answers the coordinator connections until the process is killed. Every connection is served by its own thread.
+	 * The connections are not authenticated, so the worker should only listen on a trusted network.
+	 * 
+	 * @param bindAddress
+	 *            the local address to listen on, the loopback address to only serve coordinators on the same machine
+	 */
+	public void serve(InetAddress bindAddress, int port) throws IOException
+	{
+		ExecutorService execSvc = Executors.newCachedThreadPool();
+		try (ServerSocket server = new ServerSocket(port, 0, bindAddress))
+		{
+			System.err.println("Serving tables ["+this.fromTable+","+this.toTable+") of "+this.tables.length+" on "+bindAddress.getHostAddress()+":"+port+".");
+			
+			while (true)
+			{
+				final Socket socket = server.accept();
+				execSvc.execute(() -> handleConnection(socket));
+			}
+		}
+		finally
+		{
+			execSvc.shutdownNow();
+		}
+	}
+}
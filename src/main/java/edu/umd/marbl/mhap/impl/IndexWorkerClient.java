@@ -0,0 +1,151 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import edu.umd.marbl.mhap.sketch.MinHashSketch;
+import edu.umd.marbl.mhap.utils.DenseHitCounter;
+import edu.umd.marbl.mhap.utils.Utils;
+
+/**
+ * Connection of a search thread to an {@link IndexWorker}. A batch of queries is sent first, and the partial hit counts
+ * are then read back one query at a time, so that the counts of all workers can be merged into a single counter.
+ */
+final class IndexWorkerClient implements Closeable
+{
+	private final String address;
+	private final int fromTable;
+	private final DataInputStream input;
+	private final DataOutputStream output;
+	private final Socket socket;
+	private final int toTable;
+
+	/**
+	 * @throws MhapRuntimeException
+	 *             if the worker serves an index with a different layout or different sketch settings
+	 */
+	public IndexWorkerClient(InetSocketAddress address, int numTables, int numSequences, int bandSize, boolean canonical,
+			IndexSettings settings) throws IOException
+	{
+		this.address = address.toString();
+		this.socket = new Socket(address.getHostString(), address.getPort());
+		this.socket.setTcpNoDelay(true);
+		this.input = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), Utils.BUFFER_BYTE_SIZE));
+		this.output = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), Utils.BUFFER_BYTE_SIZE));
+		
+		// the worker must serve the same index
+		int workerTables = this.input.readInt();
+		int workerSequences = this.input.readInt();
+		this.fromTable = this.input.readInt();
+		this.toTable = this.input.readInt();
+		int workerBandSize = this.input.readInt();
+		boolean workerCanonical = this.input.readBoolean();
+		IndexSettings workerSettings = IndexSettings.read(this.input);
+		
+		try
+		{
+			if (workerTables != numTables || workerSequences != numSequences)
+				throw new MhapRuntimeException("Index worker "+this.address+" serves an index with "+workerTables+" tables and "
+						+workerSequences+" sequences, expected "+numTables+" tables and "+numSequences+" sequences.");
+			
+			if (workerBandSize != bandSize || workerCanonical != canonical)
+				throw new MhapRuntimeException("Index worker "+this.address+" serves an index with band size "+workerBandSize+" and canonical "
+						+workerCanonical+", expected band size "+bandSize+" and canonical "+canonical+".");
+			
+			settings.checkMatches(workerSettings, "served by index worker "+this.address);
+		}
+		catch (MhapRuntimeException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.socket.close();
+	}
+
+	public int getFromTable()
+	{
+		return this.fromTable;
+	}
+
+	public int getToTable()
+	{
+		return this.toTable;
+	}
+
+	/**
+	 * Reads the partial counts of the next query of the batch.
+	 * 
+	 * @return the number of stop-listed tables of the worker for the query
+	 */
+	public int readCounts(DenseHitCounter counter) throws IOException
+	{
+		int skippedTables = this.input.readInt();
+		int numHits = this.input.readInt();
+		for (int iter = 0; iter < numHits; iter++)
+		{
+			int ordinal = this.input.readInt();
+			counter.addHits(ordinal, this.input.readInt());
+		}
+		
+		return skippedTables;
+	}
+
+	/**
+	 * Sends the keys of the worker tables for a batch of queries.
+	 */
+	public void sendBatch(MinHashSketch[] queries, int numQueries, int bandSize) throws IOException
+	{
+		this.output.writeInt(numQueries);
+		for (int query = 0; query < numQueries; query++)
+			for (int table = this.fromTable; table < this.toTable; table++)
+				this.output.writeInt(queries[query].getBandKey(table, bandSize));
+		
+		this.output.flush();
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.address+" [tables "+this.fromTable+":"+this.toTable+")";
+	}
+}
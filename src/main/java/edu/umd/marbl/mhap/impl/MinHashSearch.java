@@ -29,225 +29,898 @@
  */
 package edu.umd.marbl.mhap.impl;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import edu.umd.marbl.mhap.sketch.BottomOverlapSketch;
+import edu.umd.marbl.mhap.sketch.BottomOverlapSketch.MatchData;
+import edu.umd.marbl.mhap.sketch.BottomOverlapSketch.MatchData.Rejection;
 import edu.umd.marbl.mhap.sketch.MinHashSketch;
-import edu.umd.marbl.mhap.utils.HitCounter;
+import edu.umd.marbl.mhap.utils.DenseHitCounter;
 
 public final class MinHashSearch extends AbstractMatchSearch
 {
+	private static final class QueryBatch
+	{
+		private int[] buckets;
+		private int[] keys;
+		private final MatchData matchData;
+		private BottomOverlapSketch[] mirroredHashes;
+		private MinHashSketch[] minHashes;
+		private int numPairs;
+		private final int numTables;
+		private final long[] order;
+		private int[] pairCounts;
+		private int[] pairQueries;
+		private MatchResult[] pairResults;
+		private long[] pairs;
+		private long[] probes;
+		private int[] searchedTables;
+		
+		private QueryBatch(int numTables)
+		{
+			this.numTables = numTables;
+			this.matchData = new MatchData();
+			this.order = new long[numTables];
+			this.buckets = new int[numTables];
+			this.keys = new int[1];
+			this.minHashes = new MinHashSketch[1];
+			this.mirroredHashes = new BottomOverlapSketch[1];
+			this.probes = new long[1];
+			this.searchedTables = new int[1];
+			this.pairs = new long[256];
+			this.pairQueries = new int[256];
+			this.pairCounts = new int[256];
+			this.pairResults = new MatchResult[512];
+		}
+		
+		private void addPair(int query, int ordinal, int count)
+		{
+			if (this.numPairs >= this.pairs.length)
+			{
+				this.pairs = Arrays.copyOf(this.pairs, this.pairs.length * 2);
+				this.pairQueries = Arrays.copyOf(this.pairQueries, this.pairs.length);
+				this.pairCounts = Arrays.copyOf(this.pairCounts, this.pairs.length);
+				this.pairResults = new MatchResult[2 * this.pairs.length];
+			}
+			
+			// sorting by the stored ordinal keeps the pairs of an ordinal in the order they were found
+			this.pairs[this.numPairs] = ((long) ordinal << 32) | this.numPairs;
+			this.pairQueries[this.numPairs] = query;
+			this.pairCounts[this.numPairs] = count;
+			this.numPairs++;
+		}
+		
+		private void ensureCapacity(int numQueries)
+		{
+			if (this.minHashes.length >= numQueries)
+				return;
+			
+			this.buckets = new int[numQueries * this.numTables];
+			this.keys = new int[numQueries];
+			this.minHashes = new MinHashSketch[numQueries];
+			this.mirroredHashes = new BottomOverlapSketch[numQueries];
+			this.probes = new long[numQueries];
+			this.searchedTables = new int[numQueries];
+		}
+	}
+	
 	private final double acceptScore;
-
-	private final ArrayList<Map<Integer, ArrayList<SequenceId>>> hashes;
+	private final int bandSize;
+
+	private final AtomicInteger buildCount;
+	private SequenceSketch[] buildSequences;
+	private final boolean canonical;
+	private final PostingTable[] hashes;
+	private final ThreadLocal<DenseHitCounter> hitCounters;
+	private final int maxBucketSize;
+	private final int minHashBits;
 	private final double maxShift;
+	private final boolean downsampleBuckets;
 	private final AtomicLong minhashSearchTime;
 	private final AtomicLong sortMergeSearchTime;
 	private final int minStoreLength;
 	private final AtomicLong numberElementsProcessed;
 	
 	private final AtomicLong numberSequencesFullyCompared;
+	private final AtomicLongArray numberOverlapRejections;
 	private final AtomicLong numberSequencesHit;
 	private final AtomicLong numberSequencesMinHashed;
+	private final AtomicLong numberTablesSkipped;
+	private final AtomicLong numberPrescreenAccepted;
+	private final AtomicLong numberPrescreenRejected;
 
 	private final int numMinMatches;
-	private final Map<SequenceId, SequenceSketch> sequenceVectorsHash;
+	private final boolean prefixFilter;
+	private final CandidatePrescreen prescreen;
+	private final ThreadLocal<QueryBatch> queryBatches;
+	private final int queryBatchSize;
+	private final InetSocketAddress[] indexWorkers;
+	private final IndexSettings indexSettings;
+	private final ThreadLocal<IndexWorkerClient[]> workerClients;
+	private final ConcurrentLinkedQueue<IndexWorkerClient> workerConnections;
+	private final Object2IntOpenHashMap<SequenceId> sequenceOrdinals;
+	private SequenceSketch[] sequenceVectors;
 	
-	public MinHashSearch(SequenceSketchStreamer data, int numHashes, int numMinMatches, int numThreads, 
-			boolean storeResults, int minStoreLength, double maxShift, double acceptScore, boolean doReverseCompliment) throws IOException
+	/**
+	 * Loads an index previously stored with {@link #writeIndex(String, IndexSettings)}. The posting tables are memory mapped from the
+	 * file, so concurrent processes loading the same index share the page cache, while the stored sketches are read
+	 * into memory.
+	 * 
+	 * @param indexWorkers
+	 *            if not empty, the tables are not mapped, and the hits are instead counted by the {@link IndexWorker}
+	 *            processes at these addresses, which together must serve all the tables of the file
+	 * @param settings
+	 *            the sketch settings of the queries, which must match the ones the index was built with
+	 * @param prescreen
+	 *            if not null, decides the candidates it can before the second stage
+	 */
+	public static MinHashSearch fromIndexFile(String file, IndexSettings settings, List<InetSocketAddress> indexWorkers, int numMinMatches, int numMinBands,
+			boolean prefixFilter, int queryBatchSize, int numThreads, boolean storeResults, int minStoreLength, double maxShift, double acceptScore,
+			CandidatePrescreen prescreen) throws IOException
+	{
+		IndexFile index;
+		if (indexWorkers.isEmpty())
+			index = IndexFile.read(file, 0, Integer.MAX_VALUE, true);
+		else
+			index = IndexFile.read(file, 0, 0, true);
+		
+		settings.checkMatches(index.getSettings(), file);
+		
+		int bandSize = index.getBandSize();
+		
+		return new MinHashSearch(index.getTables(), index.getSequences(), settings, indexWorkers, bandSize, index.isCanonical(), bandSize > 1 ? numMinBands : numMinMatches,
+				prefixFilter, queryBatchSize, numThreads, storeResults, minStoreLength, maxShift, acceptScore, prescreen);
+	}
+	
+	private MinHashSearch(PostingTable[] hashes, SequenceSketch[] sequences, IndexSettings settings, List<InetSocketAddress> indexWorkers, int bandSize,
+			boolean canonical, int numMinMatches, boolean prefixFilter, int queryBatchSize, int numThreads, boolean storeResults, int minStoreLength,
+			double maxShift, double acceptScore, CandidatePrescreen prescreen) throws IOException
 	{
 		super(numThreads, storeResults);
 
+		this.prefixFilter = prefixFilter;
+		this.prescreen = prescreen;
+		this.queryBatchSize = queryBatchSize;
 		this.minStoreLength = minStoreLength;
+		this.bandSize = bandSize;
+		this.canonical = canonical;
+		this.minHashBits = sequences.length > 0 ? sequences[0].getMinHashes().getNumBits() : 32;
 		this.numMinMatches = numMinMatches;
 		this.maxShift = maxShift;
 		this.acceptScore = acceptScore;
 		this.numberSequencesHit = new AtomicLong();
 		this.numberSequencesFullyCompared = new AtomicLong();
+		this.numberOverlapRejections = new AtomicLongArray(Rejection.values().length);
+		this.numberSequencesMinHashed = new AtomicLong(sequences.length);
+		this.numberTablesSkipped = new AtomicLong();
+		this.numberPrescreenAccepted = new AtomicLong();
+		this.numberPrescreenRejected = new AtomicLong();
+		this.buildCount = null;
+		this.maxBucketSize = 0;
+		this.downsampleBuckets = false;
+		this.numberElementsProcessed = new AtomicLong();
+		this.minhashSearchTime = new AtomicLong();
+		this.sortMergeSearchTime = new AtomicLong();
+		
+		this.hashes = hashes;
+		this.sequenceVectors = sequences;
+		this.sequenceOrdinals = new Object2IntOpenHashMap<>(sequences.length);
+		this.sequenceOrdinals.defaultReturnValue(-1);
+		for (int ordinal = 0; ordinal < sequences.length; ordinal++)
+			if (this.sequenceOrdinals.put(sequences[ordinal].getSequenceId(), ordinal) >= 0)
+				throw new MhapRuntimeException("Sequence ID already exists in the hash table.");
+		
+		this.hitCounters = ThreadLocal.withInitial(() -> new DenseHitCounter(this.sequenceVectors.length));
+		this.queryBatches = ThreadLocal.withInitial(() -> new QueryBatch(this.hashes.length));
+		
+		System.err.println("Loaded "+this.sequenceVectors.length+" sequences from the index file.");
+		
+		this.indexSettings = settings;
+		if (indexWorkers.isEmpty())
+		{
+			this.indexWorkers = null;
+			this.workerClients = null;
+			this.workerConnections = null;
+		}
+		else
+		{
+			this.indexWorkers = indexWorkers.toArray(new InetSocketAddress[indexWorkers.size()]);
+			this.workerConnections = new ConcurrentLinkedQueue<>();
+			this.workerClients = ThreadLocal.withInitial(() -> connectWorkers());
+			
+			// the workers must split the tables between them, the search threads open their own connections
+			IndexWorkerClient[] clients = connectWorkers();
+			try
+			{
+				int nextTable = 0;
+				for (IndexWorkerClient client : clients)
+				{
+					if (client.getFromTable() != nextTable)
+						throw new MhapRuntimeException("Index worker "+client+" does not continue from table "+nextTable+".");
+					
+					System.err.println("Connected to index worker "+client+".");
+					nextTable = client.getToTable();
+				}
+				
+				if (nextTable != this.hashes.length)
+					throw new MhapRuntimeException("Index workers serve only "+nextTable+" of the "+this.hashes.length+" tables.");
+			}
+			finally
+			{
+				closeWorkers(clients);
+			}
+		}
+	}
+	
+	public MinHashSearch(SequenceSketchStreamer data, int numHashes, int numMinMatches, int numThreads, 
+			boolean storeResults, int minStoreLength, double maxShift, double acceptScore, boolean doReverseCompliment,
+			boolean canonical, int maxBucketSize, boolean downsampleBuckets, int bandSize, int numMinBands, int minHashBits, boolean prefixFilter,
+			int queryBatchSize, CandidatePrescreen prescreen) throws IOException
+	{
+		super(numThreads, storeResults);
+
+		this.prefixFilter = prefixFilter;
+		this.prescreen = prescreen;
+		this.queryBatchSize = queryBatchSize;
+		if (bandSize <= 0 || numHashes % bandSize != 0)
+			throw new MhapRuntimeException("Number of hashes must be a multiple of the band size.");
+
+		this.minStoreLength = minStoreLength;
+		this.bandSize = bandSize;
+		this.canonical = canonical;
+		this.minHashBits = minHashBits;
+		this.numMinMatches = bandSize > 1 ? numMinBands : numMinMatches;
+		this.maxShift = maxShift;
+		this.acceptScore = acceptScore;
+		this.numberSequencesHit = new AtomicLong();
+		this.numberSequencesFullyCompared = new AtomicLong();
+		this.numberOverlapRejections = new AtomicLongArray(Rejection.values().length);
 		this.numberSequencesMinHashed = new AtomicLong();
+		this.numberTablesSkipped = new AtomicLong();
+		this.numberPrescreenAccepted = new AtomicLong();
+		this.numberPrescreenRejected = new AtomicLong();
+		this.maxBucketSize = maxBucketSize;
+		this.downsampleBuckets = downsampleBuckets;
 		this.numberElementsProcessed = new AtomicLong();
 		this.minhashSearchTime = new AtomicLong();
 		this.sortMergeSearchTime = new AtomicLong();
 		
 		// enqueue full file, since have to know full size
-		data.enqueueFullFile(false, this.numThreads);
+		data.enqueueFullFile(canonical, this.numThreads);
 
-		//this.sequenceVectorsHash = new HashMap<>(data.getNumberProcessed());
-		this.sequenceVectorsHash = new Object2ObjectOpenHashMap<>(data.getNumberProcessed());
+		this.sequenceOrdinals = new Object2IntOpenHashMap<>(data.getNumberProcessed());
+		this.sequenceOrdinals.defaultReturnValue(-1);
+		this.buildSequences = new SequenceSketch[data.getNumberProcessed()];
+		this.buildCount = new AtomicInteger();
+		this.hashes = new PostingTable[numHashes / bandSize];
 
-		this.hashes = new ArrayList<>(numHashes);
-		for (int iter = 0; iter < numHashes; iter++)
-		{
-			//Map<Integer,ArrayList<SequenceId>> map = new HashMap<Integer, ArrayList<SequenceId>>(data.getNumberProcessed());			
-			Map<Integer,ArrayList<SequenceId>> map = new Int2ObjectOpenHashMap<ArrayList<SequenceId>>(data.getNumberProcessed());
-			
-			this.hashes.add(map);
-		}
+		//store both forward andd reverse, a canonical sketch already serves both
+		addData(data, doReverseCompliment && !canonical);
+		
+		//build the tables from the stored sketches
+		freezeHashes();
 		
-		//store both forward andd reverse
-		addData(data, doReverseCompliment);
+		//each thread counts the hits of its queries by ordinal
+		this.hitCounters = ThreadLocal.withInitial(() -> new DenseHitCounter(this.sequenceVectors.length));
+		this.queryBatches = ThreadLocal.withInitial(() -> new QueryBatch(this.hashes.length));
+		this.indexWorkers = null;
+		this.indexSettings = null;
+		this.workerClients = null;
+		this.workerConnections = null;
 		
-		System.err.println("Stored "+this.sequenceVectorsHash.size()+" sequences in the index.");
+		System.err.println("Stored "+this.sequenceVectors.length+" sequences in the index.");
 	}
 
 	@Override
 	public boolean addSequence(SequenceSketch currHash)
 	{
-		int[] currMinHashes = currHash.getMinHashes().getMinHashArray();
-
-		if (currMinHashes.length != this.hashes.size())
+		if (currHash.getMinHashes().numHashes() != this.hashes.length * this.bandSize)
 			throw new MhapRuntimeException("Number of MinHashes of the sequence does not match current settings.");
 
-		// put the result into the hashmap
-		synchronized (this.sequenceVectorsHash)
+		// claim the ordinal used by the posting lists, the tables are built once all sequences are stored
+		int ordinal = this.buildCount.getAndIncrement();
+		if (ordinal >= this.buildSequences.length)
+			throw new MhapRuntimeException("More sequences stored than were loaded from the file.");
+		
+		// sketches read from files created with more bits are packed, so that the tables use the same keys
+		this.buildSequences[ordinal] = currHash.createPacked(this.minHashBits);
+
+		//increment the counter
+		this.numberSequencesMinHashed.getAndIncrement();
+		
+		return true;
+	}
+
+	/**
+	 * Adds the hits of the buckets found for a query to the counter, skipping stop-listed buckets.
+	 * 
+	 * @param buckets
+	 *            the bucket of every table, or -1 if the key is not in the table
+	 * @param offset
+	 *            the position of the first table of the query in buckets
+	 * @return the number of stop-listed tables
+	 */
+	private int countHits(int[] buckets, int offset, DenseHitCounter bestSequenceHit, long[] order)
+	{
+		long additionalProcessed = 0L;
+		int skippedTables = 0;
+		if (this.prefixFilter)
 		{
-			SequenceSketch minHash = this.sequenceVectorsHash.put(currHash.getSequenceId(), currHash);
-			if (minHash != null)
+			// order the buckets by the length of their posting lists
+			int numLookups = 0;
+			for (int hashIndex = 0; hashIndex < this.hashes.length; hashIndex++)
 			{
-				this.sequenceVectorsHash.put(currHash.getSequenceId(), minHash);
-
-				throw new MhapRuntimeException("Sequence ID already exists in the hash table.");
-			}			
+				int bucket = buckets[offset + hashIndex];
+				if (bucket < 0)
+					continue;
+				
+				PostingTable currHash = this.hashes[hashIndex];
+				int size = currHash.bucketEnd(bucket) - currHash.bucketStart(bucket);
+				if (size == 0)
+				{
+					skippedTables++;
+					continue;
+				}
+				
+				order[numLookups] = ((long) size << 32) | hashIndex;
+				numLookups++;
+			}
+			
+			Arrays.sort(order, 0, numLookups);
+			int minMatches = getMinMatches(skippedTables);
+			
+			for (int iter = 0; iter < numLookups; iter++)
+			{
+				int hashIndex = (int) order[iter];
+				PostingTable currHash = this.hashes[hashIndex];
+				int start = currHash.bucketStart(buckets[offset + hashIndex]);
+				int end = currHash.bucketEnd(buckets[offset + hashIndex]);
+				
+				additionalProcessed += end - start;
+				
+				// a sequence first seen here can no longer reach the minimum count, so only count existing candidates
+				if (numLookups - iter < minMatches)
+				{
+					for (int index = start; index < end; index++)
+						bestSequenceHit.addExistingHit(currHash.getPosting(index));
+				}
+				else
+				{
+					for (int index = start; index < end; index++)
+						bestSequenceHit.addHit(currHash.getPosting(index));
+				}
+			}
 		}
-		
-		// add the hashes
-		int count = 0;
-		SequenceId id = currHash.getSequenceId();
-		for (Map<Integer, ArrayList<SequenceId>> hash : this.hashes)
+		else
 		{
-			ArrayList<SequenceId> currList;
-			final int hashVal = currMinHashes[count];
-
-			// get the list
-			synchronized (hash)
+			for (int hashIndex = 0; hashIndex < this.hashes.length; hashIndex++)
 			{
-				currList = hash.computeIfAbsent(hashVal, k-> new ArrayList<SequenceId>(2));
+				int bucket = buckets[offset + hashIndex];
+	
+				// no matches exist
+				if (bucket < 0)
+					continue;
+				
+				PostingTable currHash = this.hashes[hashIndex];
+				int start = currHash.bucketStart(bucket);
+				int end = currHash.bucketEnd(bucket);
+				
+				// the bucket is on the repeat stop-list
+				if (start == end)
+				{
+					skippedTables++;
+					continue;
+				}
+	
+				additionalProcessed += end - start;
+				for (int index = start; index < end; index++)
+					bestSequenceHit.addHit(currHash.getPosting(index));
 			}
+		}
+		
+		this.numberElementsProcessed.getAndAdd(additionalProcessed);
+		
+		return skippedTables;
+	}
 
-			// add the element
-			synchronized (currList)
+	/**
+	 * Finds the bucket of every query in every table. The tables are visited one at a time for the whole batch, and
+	 * the lookups of a table are done in the order of their slots, so that the table is walked sequentially instead of
+	 * at random.
+	 */
+	private void findBuckets(QueryBatch batch, int numQueries)
+	{
+		int numTables = this.hashes.length;
+		for (int hashIndex = 0; hashIndex < numTables; hashIndex++)
+		{
+			PostingTable currHash = this.hashes[hashIndex];
+			
+			// a single query needs no ordering
+			if (numQueries == 1)
 			{
-				currList.add(id);
+				batch.buckets[hashIndex] = currHash.find(batch.minHashes[0].getBandKey(hashIndex, this.bandSize));
+				continue;
 			}
 			
-			count++;
+			for (int query = 0; query < numQueries; query++)
+			{
+				int key = batch.minHashes[query].getBandKey(hashIndex, this.bandSize);
+				batch.keys[query] = key;
+				batch.probes[query] = ((long) currHash.slot(key) << 32) | query;
+			}
+			
+			Arrays.sort(batch.probes, 0, numQueries);
+			
+			for (int iter = 0; iter < numQueries; iter++)
+			{
+				int query = (int) batch.probes[iter];
+				batch.buckets[query * numTables + hashIndex] = currHash.find(batch.keys[query]);
+			}
 		}
-
-		//increment the counter
-		this.numberSequencesMinHashed.getAndIncrement();
-		
-		return true;
 	}
 
 	@Override
 	public List<MatchResult> findMatches(SequenceSketch seqHashes, boolean toSelf)
+	{
+		return findMatches(Collections.singletonList(seqHashes), toSelf);
+	}
+
+	@Override
+	protected List<MatchResult> findMatches(List<SequenceSketch> queries, boolean toSelf)
 	{
 		//for performance reasons might need to change
 		long startTime = System.nanoTime();
 
-		MinHashSketch minHash = seqHashes.getMinHashes();
-
-		if (this.hashes.size() != minHash.numHashes())
-			throw new MhapRuntimeException("Number of hashes does not match. Stored size " + this.hashes.size()
-					+ ", input size " + minHash.numHashes() + ".");
+		int numQueries = queries.size();
+		QueryBatch batch = this.queryBatches.get();
+		batch.ensureCapacity(numQueries);
 		
-		Map<SequenceId, HitCounter> bestSequenceHit = new Object2ObjectOpenHashMap<>(256);
-		int[] minHashes = minHash.getMinHashArray();
+		for (int query = 0; query < numQueries; query++)
+		{
+			MinHashSketch minHash = queries.get(query).getMinHashes().pack(this.minHashBits);
+			
+			if (this.hashes.length * this.bandSize != minHash.numHashes())
+				throw new MhapRuntimeException("Number of hashes does not match. Stored size " + this.hashes.length * this.bandSize
+						+ ", input size " + minHash.numHashes() + ".");
+			
+			batch.minHashes[query] = minHash;
+		}
 		
-		int hashIndex = 0;
-		long additionalProcessed = 0L;
-		for (Map<Integer,ArrayList<SequenceId>> currHash : this.hashes)
+		// look up the whole batch, or let the workers count the hits of their tables
+		if (this.indexWorkers != null)
+			sendToWorkers(batch.minHashes, numQueries);
+		else
+			findBuckets(batch, numQueries);
+		
+		this.minhashSearchTime.getAndAdd(System.nanoTime() - startTime);
+		
+		DenseHitCounter bestSequenceHit = this.hitCounters.get();
+		batch.numPairs = 0;
+		for (int query = 0; query < numQueries; query++)
 		{
-			ArrayList<SequenceId> currentHashMatchList = currHash.get(minHashes[hashIndex]);
-
-			// if some matches exist add them
-			if (currentHashMatchList != null)
+			long countStartTime = System.nanoTime();
+			
+			int skippedTables;
+			if (this.indexWorkers != null)
+				skippedTables = readWorkerCounts(bestSequenceHit);
+			else
+				skippedTables = countHits(batch.buckets, query * this.hashes.length, bestSequenceHit, batch.order);
+			
+			int minMatches = getMinMatches(skippedTables);
+			
+			//record the search time
+			long minHashEndTime = System.nanoTime();
+			this.minhashSearchTime.getAndAdd(minHashEndTime - countStartTime);
+	
+			//record the procssed statistic
+			this.numberSequencesHit.getAndAdd(bestSequenceHit.numTouched());
+			this.numberTablesSkipped.getAndAdd(skippedTables);
+			
+			batch.searchedTables[query] = this.hashes.length - skippedTables;
+			collectCandidates(query, queries.get(query), toSelf, bestSequenceHit, minMatches, batch);
+			
+			//reset the counts for the next query
+			bestSequenceHit.clear();
+		}
+		
+		long scoreStartTime = System.nanoTime();
+		
+		// compare the whole batch grouped by the stored sequence, so that its sketch is read once for all its queries
+		if (numQueries > 1)
+			Arrays.sort(batch.pairs, 0, batch.numPairs);
+		
+		for (int iter = 0; iter < batch.numPairs; iter++)
+			scorePair(queries, batch, (int) (batch.pairs[iter] >>> 32), (int) batch.pairs[iter]);
+		
+		// report in the order the pairs were found
+		ArrayList<MatchResult> matches = new ArrayList<MatchResult>(32);
+		for (int iter = 0; iter < 2 * batch.numPairs; iter++)
+		{
+			if (batch.pairResults[iter] != null)
 			{
-				additionalProcessed += currentHashMatchList.size();
-				for (SequenceId sequenceId : currentHashMatchList)
-				{
-					bestSequenceHit.compute(sequenceId, (k,v)-> (v==null) ? new HitCounter(1) : v.addHit());
-				}
+				matches.add(batch.pairResults[iter]);
+				batch.pairResults[iter] = null;
 			}
-			
-			hashIndex++;
 		}
 		
+		Arrays.fill(batch.mirroredHashes, 0, numQueries, null);
+		
 		//record the search time
-		long minHashEndTime = System.nanoTime();
-		this.minhashSearchTime.getAndAdd(minHashEndTime - startTime);
+		//TODO not clear why not working. Perhaps everything is too fast?
+		long endTime = System.nanoTime();
+		this.sortMergeSearchTime.getAndAdd(endTime-scoreStartTime);
 
-		//record the procssed statistic
+		return matches;
+	}
+
+	@Override
+	protected int getQueryBatchSize()
+	{
+		return this.queryBatchSize;
+	}
+
+	private int readWorkerCounts(DenseHitCounter bestSequenceHit)
+	{
+		int skippedTables = 0;
+		try
+		{
+			for (IndexWorkerClient client : this.workerClients.get())
+				skippedTables += client.readCounts(bestSequenceHit);
+		}
+		catch (IOException e)
+		{
+			throw new MhapRuntimeException("Lost connection to index worker.", e);
+		}
+		
+		// every posting visited by the workers added one hit
+		long additionalProcessed = 0L;
+		for (int iter = 0; iter < bestSequenceHit.numTouched(); iter++)
+			additionalProcessed += bestSequenceHit.getCount(bestSequenceHit.getTouched(iter));
+		
 		this.numberElementsProcessed.getAndAdd(additionalProcessed);
-		this.numberSequencesHit.getAndAdd(bestSequenceHit.size());
 		
+		return skippedTables;
+	}
+
+	private void sendToWorkers(MinHashSketch[] queries, int numQueries)
+	{
+		try
+		{
+			for (IndexWorkerClient client : this.workerClients.get())
+				client.sendBatch(queries, numQueries, this.bandSize);
+		}
+		catch (IOException e)
+		{
+			throw new MhapRuntimeException("Lost connection to index worker.", e);
+		}
+	}
+
+	/**
+	 * Adds the pairs of the query with the stored sequences that pass the first stage to the batch.
+	 */
+	private void collectCandidates(int query, SequenceSketch seqHashes, boolean toSelf, DenseHitCounter bestSequenceHit, int minMatches,
+			QueryBatch batch)
+	{
 		// compute the proper counts for all sets and remove below threshold
-		ArrayList<MatchResult> matches = new ArrayList<MatchResult>(32);
-		
-		for (Entry<SequenceId, HitCounter> match : bestSequenceHit.entrySet())
+		for (int iter = 0; iter < bestSequenceHit.numTouched(); iter++)
 		{
-			//get the match id
-			SequenceId matchId = match.getKey();
+			//get the match sketch and id
+			int ordinal = bestSequenceHit.getTouched(iter);
+			SequenceSketch matchedHashes = this.sequenceVectors[ordinal];
+			SequenceId matchId = matchedHashes.getSequenceId();
 			
 			// do not store matches with smaller ids, unless its coming from a short read
 			if (toSelf && matchId.getHeaderId() == seqHashes.getSequenceId().getHeaderId())
 				continue;
 
-			//see if the hit number is high enough			
-			if (match.getValue().count >= this.numMinMatches)
+			//see if the hit number is high enough
+			int count = bestSequenceHit.getCount(ordinal);
+			if (count < minMatches)
+				continue;
+			
+			//never process short to short
+			if (matchedHashes.getSequenceLength()<this.minStoreLength && seqHashes.getSequenceLength()<this.minStoreLength)
+				continue;
+			
+			//never process long to long in self, with greater id
+			if (toSelf 
+					&& matchId.getHeaderId() > seqHashes.getSequenceId().getHeaderId()
+					&& matchedHashes.getSequenceLength()>=this.minStoreLength
+					&& seqHashes.getSequenceLength()>=this.minStoreLength)
+				continue;
+			
+			//never do short to long
+			if (toSelf 
+					&& matchedHashes.getSequenceLength()<this.minStoreLength
+					&& seqHashes.getSequenceLength()>=this.minStoreLength)
+				continue;
+			
+			//reject from the min-mer count alone, if possible
+			if (this.prescreen != null
+					&& this.prescreen.rejects(count, batch.searchedTables[query], this.bandSize, this.minHashBits, seqHashes.getSequenceLength(), matchedHashes.getSequenceLength()))
 			{
-				SequenceSketch matchedHashes = this.sequenceVectorsHash.get(match.getKey());
-				if (matchedHashes==null)
-					throw new MhapRuntimeException("Hashes not found for given id.");
-				
-				//never process short to short
-				if (matchedHashes.getSequenceLength()<this.minStoreLength && seqHashes.getSequenceLength()<this.minStoreLength)
-					continue;
-				
-				//never process long to long in self, with greater id
-				if (toSelf 
-						&& matchId.getHeaderId() > seqHashes.getSequenceId().getHeaderId()
-						&& matchedHashes.getSequenceLength()>=this.minStoreLength
-						&& seqHashes.getSequenceLength()>=this.minStoreLength)
-					continue;
-				
-				//never do short to long
-				if (toSelf 
-						&& matchedHashes.getSequenceLength()<this.minStoreLength
-						&& seqHashes.getSequenceLength()>=this.minStoreLength)
-					continue;
-				
-				//compute the direct hash score
-				OverlapInfo result = seqHashes.getOrderedHashes().getOverlapInfo(matchedHashes.getOrderedHashes(), this.maxShift);
-				boolean accept = result.score >= this.acceptScore;					
-								
-				//increment the counter
-				this.numberSequencesFullyCompared.getAndIncrement();
-
-				//if score is good add
-				if (accept)
+				this.numberPrescreenRejected.getAndIncrement();
+				continue;
+			}
+			
+			batch.addPair(query, ordinal, count);
+		}
+	}
+
+	/**
+	 * Runs the second stage on a pair of the batch, and stores its results in the two result slots of the pair.
+	 */
+	private void scorePair(List<SequenceSketch> queries, QueryBatch batch, int ordinal, int pair)
+	{
+		int query = batch.pairQueries[pair];
+		SequenceSketch seqHashes = queries.get(query);
+		SequenceSketch matchedHashes = this.sequenceVectors[ordinal];
+		SequenceId matchId = matchedHashes.getSequenceId();
+		MatchData matchData = batch.matchData;
+		
+		// the reverse compliment of the query, computed for its first candidate in a canonical index
+		if (this.canonical && batch.mirroredHashes[query] == null)
+			batch.mirroredHashes[query] = seqHashes.getOrderedHashes().mirror();
+		BottomOverlapSketch mirroredHashes = batch.mirroredHashes[query];
+		
+		//accept from the min-mer count alone, if possible
+		if (this.prescreen != null)
+		{
+			double acceptedScore = this.prescreen.acceptedScore(batch.pairCounts[pair], batch.searchedTables[query], this.bandSize, this.minHashBits, 
+					seqHashes.getSequenceLength(), matchedHashes.getSequenceLength());
+			if (acceptedScore > 0.0)
+			{
+				MatchResult result = acceptCoarse(seqHashes, matchedHashes, mirroredHashes, acceptedScore, matchData);
+				if (result != null)
 				{
-					MatchResult currResult = new MatchResult(seqHashes.getSequenceId(), matchId, result, seqHashes.getSequenceLength(), matchedHashes.getSequenceLength());
+					batch.pairResults[2 * pair] = result;
+					this.numberPrescreenAccepted.getAndIncrement();
+					return;
+				}
+			}
+		}
+		
+		//compute the direct hash score
+		double score = seqHashes.getOrderedHashes().computeOverlap(matchedHashes.getOrderedHashes(), this.maxShift, this.acceptScore, matchData);
+		this.numberOverlapRejections.getAndIncrement(matchData.getRejection().ordinal());
+		boolean accept = score >= this.acceptScore;					
+						
+		//increment the counter
+		this.numberSequencesFullyCompared.getAndIncrement();
+
+		//if score is good add
+		if (accept)
+			batch.pairResults[2 * pair] = new MatchResult(seqHashes.getSequenceId(), matchId, matchData.getOverlapInfo(), seqHashes.getSequenceLength(), matchedHashes.getSequenceLength());
+		
+		//only one strand is stored, so also compare the reverse compliment of the query
+		if (this.canonical)
+		{
+			score = mirroredHashes.computeOverlap(matchedHashes.getOrderedHashes(), this.maxShift, this.acceptScore, matchData);
+			this.numberOverlapRejections.getAndIncrement(matchData.getRejection().ordinal());
+			if (score >= this.acceptScore)
+			{
+				//mirror both sides, so that the overlap is to the reverse compliment of the stored sequence
+				OverlapInfo overlap = matchData.getOverlapInfo().mirror(mirroredHashes.getSequenceLength(), matchedHashes.getOrderedHashes().getSequenceLength());
+				
+				batch.pairResults[2 * pair + 1] = new MatchResult(seqHashes.getSequenceId(), matchId.complimentId(), overlap, seqHashes.getSequenceLength(), matchedHashes.getSequenceLength());
+			}
+		}
+	}
 
-					// add to list
-					matches.add(currResult);
+	/**
+	 * Places the overlap with {@link BottomOverlapSketch#computeCoarseOverlap(BottomOverlapSketch, double, double, MatchData)}
+	 * with the given score. In a canonical index, the strand that shares more k-mers with the stored sequence is kept.
+	 * 
+	 * @return the match, or null if the overlap could not be placed
+	 */
+	private MatchResult acceptCoarse(SequenceSketch seqHashes, SequenceSketch matchedHashes, BottomOverlapSketch mirroredHashes, double score,
+			MatchData matchData)
+	{
+		BottomOverlapSketch matchedOrdered = matchedHashes.getOrderedHashes();
+		
+		OverlapInfo overlap = null;
+		int numShared = 0;
+		if (seqHashes.getOrderedHashes().computeCoarseOverlap(matchedOrdered, this.maxShift, score, matchData))
+		{
+			overlap = matchData.getOverlapInfo();
+			numShared = matchData.getNumShared();
+		}
+		
+		SequenceId matchId = matchedHashes.getSequenceId();
+		if (mirroredHashes != null 
+				&& mirroredHashes.computeCoarseOverlap(matchedOrdered, this.maxShift, score, matchData) 
+				&& matchData.getNumShared() > numShared)
+		{
+			overlap = matchData.getOverlapInfo().mirror(mirroredHashes.getSequenceLength(), matchedOrdered.getSequenceLength());
+			matchId = matchId.complimentId();
+		}
+		
+		if (overlap == null)
+			return null;
+		
+		return new MatchResult(seqHashes.getSequenceId(), matchId, overlap, seqHashes.getSequenceLength(), matchedHashes.getSequenceLength());
+	}
+
+	private void freezeHashes()
+	{
+		this.sequenceVectors = Arrays.copyOf(this.buildSequences, this.buildCount.get());
+		this.buildSequences = null;
+		
+		for (int ordinal = 0; ordinal < this.sequenceVectors.length; ordinal++)
+			if (this.sequenceOrdinals.put(this.sequenceVectors[ordinal].getSequenceId(), ordinal) >= 0)
+				throw new MhapRuntimeException("Sequence ID already exists in the hash table.");
+
+		// each thread sorts the (min-hash, ordinal) pairs of whole tables, so no locking is needed
+		ExecutorService execSvc = Executors.newFixedThreadPool(this.numThreads);
+		final AtomicInteger nextTable = new AtomicInteger();
+		final AtomicLong numPostings = new AtomicLong();
+		for (int iter = 0; iter < this.numThreads; iter++)
+		{
+			Runnable task = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					long[] entries = new long[MinHashSearch.this.sequenceVectors.length];
+					
+					int table = nextTable.getAndIncrement();
+					while (table < MinHashSearch.this.hashes.length)
+					{
+						for (int ordinal = 0; ordinal < entries.length; ordinal++)
+						{
+							int hashVal = MinHashSearch.this.sequenceVectors[ordinal].getMinHashes().getBandKey(table, MinHashSearch.this.bandSize);
+							entries[ordinal] = PostingTable.entry(hashVal, ordinal);
+						}
+						
+						LongArrays.radixSort(entries);
+						
+						PostingTable postingTable = new PostingTable(entries, entries.length, MinHashSearch.this.maxBucketSize, MinHashSearch.this.downsampleBuckets);
+						
+						MinHashSearch.this.hashes[table] = postingTable;
+						numPostings.getAndAdd(postingTable.numPostings());
+						
+						table = nextTable.getAndIncrement();
+					}
 				}
+			};
+			
+			execSvc.execute(task);
+		}
+		
+		execSvc.shutdown();
+		try
+		{
+			execSvc.awaitTermination(365L, TimeUnit.DAYS);
+		}
+		catch (InterruptedException e)
+		{
+			execSvc.shutdownNow();
+			throw new MhapRuntimeException("Unable to finish all tasks.");
+		}
+
+		if (this.bandSize > 1)
+			System.err.println("Built reverse index of "+this.hashes.length+" bands of "+this.bandSize+" min-hashes with "+numPostings.get()+" postings.");
+		else
+			System.err.println("Built reverse index of "+this.hashes.length+" tables with "+numPostings.get()+" postings.");
+		
+		if (this.maxBucketSize > 0)
+		{
+			int numCappedTables = 0;
+			long numCappedBuckets = 0L;
+			long numDroppedPostings = 0L;
+			for (PostingTable table : this.hashes)
+			{
+				if (table.numCappedBuckets() > 0)
+					numCappedTables++;
+				
+				numCappedBuckets += table.numCappedBuckets();
+				numDroppedPostings += table.numDroppedPostings();
 			}
+			
+			System.err.println((this.downsampleBuckets ? "Down-sampled " : "Stop-listed ")+numCappedBuckets+" buckets larger than "+this.maxBucketSize
+					+" in "+numCappedTables+" tables, dropping "+numDroppedPostings+" postings.");
 		}
+	}
+
+	/**
+	 * Stores the tables and the sketches of the index, so that they can be loaded with
+	 * {@link #fromIndexFile(String, IndexSettings, List, int, int, boolean, int, int, boolean, int, double, double, CandidatePrescreen)}.
+	 * 
+	 * @param settings
+	 *            the sketch settings of the stored sequences
+	 */
+	public void writeIndex(String file, IndexSettings settings) throws IOException
+	{
+		if (this.indexWorkers != null)
+			throw new MhapRuntimeException("Index served by index workers cannot be stored.");
 		
-		//record the search time
-		//TODO not clear why not working. Perhaps everything is too fast?
-		long endTime = System.nanoTime();
-		this.sortMergeSearchTime.getAndAdd(endTime-minHashEndTime);
+		IndexFile.write(file, this.bandSize, this.canonical, settings, this.hashes, this.sequenceVectors);
+	}
 
-		return matches;
+	private IndexWorkerClient[] connectWorkers()
+	{
+		IndexWorkerClient[] clients = new IndexWorkerClient[this.indexWorkers.length];
+		for (int iter = 0; iter < this.indexWorkers.length; iter++)
+		{
+			try
+			{
+				clients[iter] = new IndexWorkerClient(this.indexWorkers[iter], this.hashes.length, this.sequenceVectors.length, this.bandSize, this.canonical,
+						this.indexSettings);
+			}
+			catch (IOException e)
+			{
+				closeWorkers(Arrays.copyOf(clients, iter));
+				throw new MhapRuntimeException("Could not connect to index worker "+this.indexWorkers[iter]+".", e);
+			}
+			
+			this.workerConnections.add(clients[iter]);
+		}
+		
+		// order by the served tables
+		Arrays.sort(clients, (a, b) -> Integer.compare(a.getFromTable(), b.getFromTable()));
+		
+		return clients;
+	}
+	
+	private void closeWorkers(IndexWorkerClient[] clients)
+	{
+		for (IndexWorkerClient client : clients)
+		{
+			this.workerConnections.remove(client);
+			try
+			{
+				client.close();
+			}
+			catch (IOException e)
+			{
+				throw new MhapRuntimeException("Could not close the connection to index worker "+client+".", e);
+			}
+		}
+	}
+
+	/**
+	 * Closes the connections to the index workers, if any.
+	 */
+	public void close() throws IOException
+	{
+		if (this.workerConnections == null)
+			return;
+		
+		IndexWorkerClient client = this.workerConnections.poll();
+		while (client != null)
+		{
+			client.close();
+			client = this.workerConnections.poll();
+		}
+	}
+
+	/**
+	 * Scales the required number of shared min-mers, or bands in the banded mode, down to the tables that could
+	 * actually be searched, since a stop-listed bucket cannot contribute a hit.
+	 */
+	private int getMinMatches(int skippedTables)
+	{
+		if (skippedTables <= 0)
+			return this.numMinMatches;
+		
+		int searchedTables = this.hashes.length - skippedTables;
+		
+		return Math.max(1, (int) Math.ceil((double) this.numMinMatches * (double) searchedTables / (double) this.hashes.length));
 	}
 
 	public double getMinHashSearchTime()
@@ -276,16 +949,54 @@ public final class MinHashSearch extends AbstractMatchSearch
 		return this.numberSequencesFullyCompared.get();
 	}
 	
+	/**
+	 * @return the number of second stage comparisons that ended at the step, {@link Rejection#NONE} counts the
+	 *         accepted ones
+	 */
+	public long getNumberOverlapRejections(Rejection step)
+	{
+		return this.numberOverlapRejections.get(step.ordinal());
+	}
+	
+	/**
+	 * @return the number of candidates rejected by the prescreen, without the second stage
+	 */
+	public long getNumberPrescreenRejected()
+	{
+		return this.numberPrescreenRejected.get();
+	}
+	
+	/**
+	 * @return the number of candidates accepted by the prescreen, with a coarse overlap instead of the second stage
+	 */
+	public long getNumberPrescreenAccepted()
+	{
+		return this.numberPrescreenAccepted.get();
+	}
+	
 	public long getNumberSequencesHit()
 	{
 		return this.numberSequencesHit.get();
 	}
+	
+	/**
+	 * @return true if a single sketch of canonical k-mers is stored for each sequence
+	 */
+	public boolean isCanonical()
+	{
+		return this.canonical;
+	}
+	
+	public long getNumberTablesSkipped()
+	{
+		return this.numberTablesSkipped.get();
+	}
 			
 	@Override
 	public List<SequenceId> getStoredForwardSequenceIds()
 	{
-		ArrayList<SequenceId> seqIds = new ArrayList<SequenceId>(this.sequenceVectorsHash.size());
-		for (SequenceSketch hashes : this.sequenceVectorsHash.values())
+		ArrayList<SequenceId> seqIds = new ArrayList<SequenceId>(this.sequenceVectors.length);
+		for (SequenceSketch hashes : this.sequenceVectors)
 			if (hashes.getSequenceId().isForward())
 				seqIds.add(hashes.getSequenceId());
 		
@@ -295,12 +1006,16 @@ public final class MinHashSearch extends AbstractMatchSearch
 	@Override
 	public SequenceSketch getStoredSequenceHash(SequenceId id)
 	{
-		return this.sequenceVectorsHash.get(id);
+		int ordinal = this.sequenceOrdinals.getInt(id);
+		if (ordinal < 0)
+			return null;
+		
+		return this.sequenceVectors[ordinal];
 	}
 
 	@Override
 	public int size()
 	{
-		return this.sequenceVectorsHash.size();
+		return this.sequenceVectors.length;
 	}
 }
@@ -49,6 +49,14 @@ public final class OverlapInfo
 		this.b2 = b2;
 	}
 	
+	/**
+	 * @return the same overlap, with both intervals moved to the reverse compliment strands
+	 */
+	public OverlapInfo mirror(int length1, int length2)
+	{
+		return new OverlapInfo(this.score, this.rawScore, Math.max(0, length1-1-this.a2), length1-1-this.a1, Math.max(0, length2-1-this.b2), length2-1-this.b1);
+	}
+	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -0,0 +1,342 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Immutable reverse index of a single hash function. The posting lists of all the buckets are stored back to back in
+ * one flat array of sequence ordinals (CSR layout), and the min-hash values are mapped to their bucket through a
+ * primitive open-addressed table. The arrays are either on the heap, or memory mapped from a saved index file. The
+ * arrays are stored in the native byte order, so that the mapped lookups do not swap bytes.
+ */
+public final class PostingTable
+{
+	private final IntBuffer bucketOffsets;
+	private final int mask;
+	private final int numCappedBuckets;
+	private final long numDroppedPostings;
+	private final IntBuffer postings;
+	private final IntBuffer slotBuckets;
+	private final IntBuffer slotKeys;
+
+	private static final int HEADER_BYTE_SIZE = 12;
+	private static final int WRITE_CHUNK_SIZE = 1 << 16;
+
+	/**
+	 * @return the number of bytes of the table stored at the position, without mapping it
+	 */
+	public static long byteSize(FileChannel channel, long position) throws IOException
+	{
+		ByteBuffer header = readHeader(channel, position);
+
+		int capacity = header.getInt();
+		int numBuckets = header.getInt();
+		int numPostings = header.getInt();
+
+		return HEADER_BYTE_SIZE + 4L * (2L * capacity + numBuckets + 1L + numPostings);
+	}
+
+	public static PostingTable map(FileChannel channel, long position) throws IOException
+	{
+		ByteBuffer header = readHeader(channel, position);
+
+		int capacity = header.getInt();
+		int numBuckets = header.getInt();
+		int numPostings = header.getInt();
+
+		position += HEADER_BYTE_SIZE;
+		IntBuffer slotKeys = mapInts(channel, position, capacity);
+		position += 4L * capacity;
+		IntBuffer slotBuckets = mapInts(channel, position, capacity);
+		position += 4L * capacity;
+		IntBuffer bucketOffsets = mapInts(channel, position, numBuckets + 1);
+		position += 4L * (numBuckets + 1);
+		IntBuffer postings = mapInts(channel, position, numPostings);
+
+		return new PostingTable(slotKeys, slotBuckets, bucketOffsets, postings);
+	}
+
+	private static ByteBuffer readHeader(FileChannel channel, long position) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTE_SIZE);
+		while (header.hasRemaining())
+			if (channel.read(header, position + header.position()) < 0)
+				throw new MhapRuntimeException("Unexpected end of index file.");
+		header.flip();
+
+		int capacity = header.getInt(0);
+		int numBuckets = header.getInt(4);
+		int numPostings = header.getInt(8);
+
+		if (Integer.bitCount(capacity) != 1 || numBuckets < 0 || numPostings < 0)
+			throw new MhapRuntimeException("Corrupted posting table in index file.");
+
+		return header;
+	}
+
+	private static IntBuffer mapInts(FileChannel channel, long position, int length) throws IOException
+	{
+		long byteSize = 4L * length;
+		if (byteSize > Integer.MAX_VALUE)
+			throw new MhapRuntimeException("Posting table is too large to be memory mapped.");
+
+		return channel.map(MapMode.READ_ONLY, position, byteSize).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	private static void writeInts(DataOutputStream output, IntBuffer values) throws IOException
+	{
+		ByteBuffer chunk = ByteBuffer.allocate(4 * WRITE_CHUNK_SIZE).order(ByteOrder.nativeOrder());
+		IntBuffer chunkInts = chunk.asIntBuffer();
+
+		int length = values.limit();
+		for (int start = 0; start < length; start += WRITE_CHUNK_SIZE)
+		{
+			int end = Math.min(length, start + WRITE_CHUNK_SIZE);
+
+			chunkInts.clear();
+			for (int iter = start; iter < end; iter++)
+				chunkInts.put(values.get(iter));
+
+			output.write(chunk.array(), 0, 4 * (end - start));
+		}
+	}
+
+	private static int keptBucketSize(int size, int maxBucketSize, boolean downsample)
+	{
+		if (maxBucketSize <= 0 || size <= maxBucketSize)
+			return size;
+		
+		return downsample ? maxBucketSize : 0;
+	}
+
+	private static int runEnd(long[] entries, int start, int length)
+	{
+		int key = (int) (entries[start] >>> 32);
+
+		int end = start + 1;
+		while (end < length && (int) (entries[end] >>> 32) == key)
+			end++;
+
+		return end;
+	}
+
+	public static long entry(int key, int ordinal)
+	{
+		return ((long) key << 32) | (ordinal & 0xffffffffL);
+	}
+
+	/**
+	 * @param entries
+	 *            (key, ordinal) pairs packed with {@link #entry(int, int)}, sorted so that equal keys are adjacent and
+	 *            ordinals are ascending within a key
+	 * @param length
+	 *            the number of valid entries
+	 * @param maxBucketSize
+	 *            buckets with more postings are capped, &lt;=0 means no limit
+	 * @param downsample
+	 *            if true, capped buckets keep an evenly spaced subset of maxBucketSize postings, otherwise they are
+	 *            emptied and act as a stop-list entry for the key
+	 */
+	public PostingTable(long[] entries, int length, int maxBucketSize, boolean downsample)
+	{
+		// size the buckets
+		int numBuckets = 0;
+		int numPostings = 0;
+		int numCappedBuckets = 0;
+		for (int start = 0; start < length;)
+		{
+			int end = runEnd(entries, start, length);
+			
+			int keptSize = keptBucketSize(end - start, maxBucketSize, downsample);
+			if (keptSize < end - start)
+				numCappedBuckets++;
+
+			numBuckets++;
+			numPostings += keptSize;
+			start = end;
+		}
+
+		// keep the load factor at or below 0.5
+		int capacity = HashCommon.arraySize(Math.max(2, numBuckets), 0.5f);
+
+		int[] slotKeys = new int[capacity];
+		int[] slotBuckets = new int[capacity];
+		int[] bucketOffsets = new int[numBuckets + 1];
+		int[] postings = new int[numPostings];
+
+		int mask = capacity - 1;
+		int bucket = 0;
+		int offset = 0;
+		for (int start = 0; start < length;)
+		{
+			int end = runEnd(entries, start, length);
+			int key = (int) (entries[start] >>> 32);
+
+			// copy the ordinals, evenly spaced if the bucket is down-sampled
+			int runSize = end - start;
+			int keptSize = keptBucketSize(runSize, maxBucketSize, downsample);
+			for (int iter = 0; iter < keptSize; iter++)
+				postings[offset + iter] = (int) entries[start + (int) ((long) iter * runSize / keptSize)];
+
+			bucketOffsets[bucket] = offset;
+			offset += keptSize;
+
+			// insert into the first free slot, bucket ids are stored shifted by one so that zero marks an empty slot
+			int slot = HashCommon.mix(key) & mask;
+			while (slotBuckets[slot] != 0)
+				slot = (slot + 1) & mask;
+
+			slotKeys[slot] = key;
+			slotBuckets[slot] = bucket + 1;
+
+			bucket++;
+			start = end;
+		}
+
+		bucketOffsets[numBuckets] = offset;
+
+		this.mask = mask;
+		this.slotKeys = IntBuffer.wrap(slotKeys);
+		this.slotBuckets = IntBuffer.wrap(slotBuckets);
+		this.bucketOffsets = IntBuffer.wrap(bucketOffsets);
+		this.postings = IntBuffer.wrap(postings);
+		this.numCappedBuckets = numCappedBuckets;
+		this.numDroppedPostings = length - numPostings;
+	}
+
+	private PostingTable(IntBuffer slotKeys, IntBuffer slotBuckets, IntBuffer bucketOffsets, IntBuffer postings)
+	{
+		this.mask = slotKeys.limit() - 1;
+		this.numCappedBuckets = 0;
+		this.numDroppedPostings = 0L;
+		this.slotKeys = slotKeys;
+		this.slotBuckets = slotBuckets;
+		this.bucketOffsets = bucketOffsets;
+		this.postings = postings;
+	}
+
+	public int bucketEnd(int bucket)
+	{
+		return this.bucketOffsets.get(bucket + 1);
+	}
+
+	public int bucketStart(int bucket)
+	{
+		return this.bucketOffsets.get(bucket);
+	}
+
+	/**
+	 * @param key
+	 *            the min-hash value
+	 * @return the bucket index of the key, or -1 if the key is not in the table. A bucket without postings marks a
+	 *         stop-listed key.
+	 */
+	public int find(int key)
+	{
+		int slot = slot(key);
+
+		int bucket = this.slotBuckets.get(slot);
+		while (bucket != 0)
+		{
+			if (this.slotKeys.get(slot) == key)
+				return bucket - 1;
+
+			slot = (slot + 1) & this.mask;
+			bucket = this.slotBuckets.get(slot);
+		}
+
+		return -1;
+	}
+
+	public int getPosting(int index)
+	{
+		return this.postings.get(index);
+	}
+
+	/**
+	 * @return the number of buckets capped when the table was built, not stored in the index file
+	 */
+	public int numCappedBuckets()
+	{
+		return this.numCappedBuckets;
+	}
+
+	public long numDroppedPostings()
+	{
+		return this.numDroppedPostings;
+	}
+
+	public int numBuckets()
+	{
+		return this.bucketOffsets.limit() - 1;
+	}
+
+	public int numPostings()
+	{
+		return this.postings.limit();
+	}
+
+	/**
+	 * @return the first slot probed for the key, lookups in increasing slot order walk the table sequentially
+	 */
+	public int slot(int key)
+	{
+		return HashCommon.mix(key) & this.mask;
+	}
+
+	/**
+	 * @return the number of bytes used by {@link #write(DataOutputStream)}
+	 */
+	public long sizeInBytes()
+	{
+		return HEADER_BYTE_SIZE + 4L * (2L * this.slotKeys.limit() + this.bucketOffsets.limit() + this.postings.limit());
+	}
+
+	public void write(DataOutputStream output) throws IOException
+	{
+		output.writeInt(this.slotKeys.limit());
+		output.writeInt(numBuckets());
+		output.writeInt(numPostings());
+
+		writeInts(output, this.slotKeys);
+		writeInts(output, this.slotBuckets);
+		writeInts(output, this.bucketOffsets);
+		writeInts(output, this.postings);
+	}
+}
@@ -37,6 +37,7 @@ import java.io.IOException;
 import java.io.Serializable;
 
 import edu.umd.marbl.mhap.sketch.FrequencyCounts;
+import edu.umd.marbl.mhap.sketch.FusedSketcher;
 import edu.umd.marbl.mhap.sketch.MinHashSketch;
 import edu.umd.marbl.mhap.sketch.BottomOverlapSketch;
 import edu.umd.marbl.mhap.sketch.ZeroNGramsFoundException;
@@ -103,16 +104,44 @@ public final class SequenceSketch implements Serializable
 		this.orderedHashes = orderedHashes;
 	}
 
-	public SequenceSketch(Sequence seq, int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize, FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
+	public SequenceSketch(Sequence seq, int kmerSize, int numHashes, int minHashBits, int minHashMode, int orderedKmerSize, int orderedSketchSize, FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
 	{
 		this.sequenceLength = seq.length();
 		this.id = seq.getId();
 		
-		//do not do reverse compliment for minhash, since unordered
-		this.mainHashes = new MinHashSketch(seq.getSquenceString(), kmerSize, numHashes, kmerFilter, false, repeatWeight);
+		//with reverse compliment both stages use canonical k-mers, so that one sketch serves both strands
+		if (FusedSketcher.canFuse(kmerSize, orderedKmerSize))
+		{
+			FusedSketcher sketcher = new FusedSketcher(seq.getPackedSequence(), kmerSize, numHashes, kmerFilter, repeatWeight, minHashMode,
+					orderedKmerSize, orderedSketchSize, doReverseCompliment);
+			
+			this.mainHashes = sketcher.getMinHashSketch().pack(minHashBits);
+			this.orderedHashes = sketcher.getOrderedSketch();
+		}
+		else
+		{
+			this.mainHashes = new MinHashSketch(seq.getPackedSequence(), kmerSize, numHashes, kmerFilter, doReverseCompliment, repeatWeight, minHashMode).pack(minHashBits);
+			this.orderedHashes = new BottomOverlapSketch(seq.getPackedSequence(), orderedKmerSize, orderedSketchSize, doReverseCompliment);
+		}
+	}
+
+	/**
+	 * @return the sketches of the forward and of the reverse compliment strand. When the k-mers can be rolled, both
+	 *         come from a single pass over the forward strand, without building the reverse compliment sequence.
+	 */
+	public static SequenceSketch[] createBothStrands(Sequence seq, int kmerSize, int numHashes, int minHashBits, int minHashMode, int orderedKmerSize, int orderedSketchSize, FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
+	{
+		if (!FusedSketcher.canFuse(kmerSize, orderedKmerSize))
+			return new SequenceSketch[] {
+					new SequenceSketch(seq, kmerSize, numHashes, minHashBits, minHashMode, orderedKmerSize, orderedSketchSize, kmerFilter, doReverseCompliment, repeatWeight),
+					new SequenceSketch(seq.getReverseCompliment(), kmerSize, numHashes, minHashBits, minHashMode, orderedKmerSize, orderedSketchSize, kmerFilter, doReverseCompliment, repeatWeight) };
 		
-		//do not do reverse compliment
-		this.orderedHashes = new BottomOverlapSketch(seq.getSquenceString(), orderedKmerSize, orderedSketchSize, false);
+		FusedSketcher sketcher = new FusedSketcher(seq.getPackedSequence(), kmerSize, numHashes, kmerFilter, repeatWeight, minHashMode,
+				orderedKmerSize, orderedSketchSize, doReverseCompliment, true);
+		
+		return new SequenceSketch[] {
+				new SequenceSketch(seq.getId(), seq.length(), sketcher.getMinHashSketch().pack(minHashBits), sketcher.getOrderedSketch()),
+				new SequenceSketch(seq.getId().complimentId(), seq.length(), sketcher.getReverseMinHashSketch().pack(minHashBits), sketcher.getReverseOrderedSketch()) };
 	}
 
 	public SequenceSketch createOffset(int offset)
@@ -120,6 +149,15 @@ public final class SequenceSketch implements Serializable
 		return new SequenceSketch(this.id.createOffset(offset), this.sequenceLength, this.mainHashes, this.orderedHashes);
 	}
 
+	public SequenceSketch createPacked(int minHashBits)
+	{
+		MinHashSketch packedHashes = this.mainHashes.pack(minHashBits);
+		if (packedHashes == this.mainHashes)
+			return this;
+		
+		return new SequenceSketch(this.id, this.sequenceLength, packedHashes, this.orderedHashes);
+	}
+
 	public byte[] getAsByteArray()
 	{
 		byte[] mainHashesBytes = this.mainHashes.getAsByteArray();		
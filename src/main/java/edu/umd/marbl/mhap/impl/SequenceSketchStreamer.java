@@ -48,6 +48,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import edu.umd.marbl.mhap.sketch.FrequencyCounts;
+import edu.umd.marbl.mhap.sketch.MinHashSketch;
 import edu.umd.marbl.mhap.sketch.ZeroNGramsFoundException;
 import edu.umd.marbl.mhap.utils.ReadBuffer;
 import edu.umd.marbl.mhap.utils.Utils;
@@ -58,12 +59,17 @@ public class SequenceSketchStreamer
 	private final FastaData fastaData;
 	private final FrequencyCounts kmerFilter;
 	private final int kmerSize;
+	private final int minHashBits;
+	private final int minHashMode;
 	private final int minOlapLength;
 	private final AtomicLong numberProcessed;
 	private final int numHashes;
 	private final int offset;
 	private final int orderedKmerSize;
 
+	private final double orderedSketchDensity;
+	private final int orderedSketchMaxSize;
+	private final int orderedSketchMinSize;
 	private final int orderedSketchSize;
 	private boolean readClosed;
 	private boolean doReverseCompliment;
@@ -84,15 +90,26 @@ public class SequenceSketchStreamer
 
 		this.kmerSize = 0;
 		this.numHashes = 0;
+		this.minHashBits = 32;
+		this.minHashMode = MinHashSketch.MODE_CLASSIC;
 		this.orderedKmerSize = 0;
 		this.orderedSketchSize = 0;
+		this.orderedSketchDensity = 0.0;
+		this.orderedSketchMinSize = 0;
+		this.orderedSketchMaxSize = 0;
 		this.readClosed = false;
 		this.offset = offset;
 
 		this.buffInput = new DataInputStream(new BufferedInputStream(new FileInputStream(file), Utils.BUFFER_BYTE_SIZE));
 	}
 
-	public SequenceSketchStreamer(String file, int minOlapLength, int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize,
+	/**
+	 * @param orderedSketchDensity
+	 *            if &gt;0, the ordered sketch of a sequence keeps this many k-mers per kb, within [orderedSketchMinSize,
+	 *            orderedSketchMaxSize], instead of orderedSketchSize k-mers
+	 */
+	public SequenceSketchStreamer(String file, int minOlapLength, int kmerSize, int numHashes, int minHashBits, int minHashMode, int orderedKmerSize, int orderedSketchSize,
+			double orderedSketchDensity, int orderedSketchMinSize, int orderedSketchMaxSize,
 			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, int offset) throws IOException
 	{
 		this.fastaData = new FastaData(file, offset);
@@ -106,8 +123,13 @@ public class SequenceSketchStreamer
 		this.kmerFilter = kmerFilter;
 		this.kmerSize = kmerSize;
 		this.numHashes = numHashes;
+		this.minHashBits = minHashBits;
+		this.minHashMode = minHashMode;
 		this.orderedKmerSize = orderedKmerSize;
 		this.orderedSketchSize = orderedSketchSize;
+		this.orderedSketchDensity = orderedSketchDensity;
+		this.orderedSketchMinSize = orderedSketchMinSize;
+		this.orderedSketchMaxSize = orderedSketchMaxSize;
 		this.buffInput = null;
 		this.readClosed = false;
 		this.offset = offset;
@@ -132,26 +154,26 @@ public class SequenceSketchStreamer
 			}
 			while (seq!=null && seq.length()<this.minOlapLength);
 			
-			// compute the hashes
-			seqHashes = null;
-			if (seq != null)
-				seqHashes = getSketch(seq);
-
-			if (seqHashes == null)
+			if (seq == null)
 				return false;
-			
-			processAddition(seqHashes);
 
-			this.sequenceHashList.add(seqHashes);
-
-			// fasta files are all fwd
-			if (!fwdOnly)
+			// compute the hashes, fasta files are all fwd
+			if (fwdOnly)
 			{
-				// compute the hashes
-				seqHashes = getSketch(seq.getReverseCompliment());
-
-				this.sequenceHashList.add(seqHashes);
+				seqHashes = getSketch(seq);
+				
 				processAddition(seqHashes);
+				this.sequenceHashList.add(seqHashes);
+			}
+			else
+			{
+				SequenceSketch[] strandHashes = getSketches(seq);
+				
+				processAddition(strandHashes[0]);
+				this.sequenceHashList.add(strandHashes[0]);
+
+				this.sequenceHashList.add(strandHashes[1]);
+				processAddition(strandHashes[1]);
 			}
 		}
 		else
@@ -259,10 +281,31 @@ public class SequenceSketchStreamer
 		return this.numberProcessed.intValue();
 	}
 
+	/**
+	 * @return the number of k-mers kept by the ordered sketch of the sequence
+	 */
+	private int getOrderedSketchSize(Sequence seq)
+	{
+		if (this.orderedSketchDensity <= 0.0)
+			return this.orderedSketchSize;
+		
+		int size = (int) Math.ceil(this.orderedSketchDensity * (double) seq.numKmers(this.orderedKmerSize) / 1000.0);
+		
+		return Math.max(this.orderedSketchMinSize, Math.min(this.orderedSketchMaxSize, size));
+	}
+
 	public SequenceSketch getSketch(Sequence seq) throws ZeroNGramsFoundException
 	{
 		// compute the hashes
-		return new SequenceSketch(seq, this.kmerSize, this.numHashes, this.orderedKmerSize, this.orderedSketchSize, this.kmerFilter, this.doReverseCompliment, this.repeatWeight);
+		return new SequenceSketch(seq, this.kmerSize, this.numHashes, this.minHashBits, this.minHashMode, this.orderedKmerSize, getOrderedSketchSize(seq), this.kmerFilter, this.doReverseCompliment, this.repeatWeight);
+	}
+
+	/**
+	 * @return the sketches of the forward and of the reverse compliment strand of the sequence
+	 */
+	public SequenceSketch[] getSketches(Sequence seq) throws ZeroNGramsFoundException
+	{
+		return SequenceSketch.createBothStrands(seq, this.kmerSize, this.numHashes, this.minHashBits, this.minHashMode, this.orderedKmerSize, getOrderedSketchSize(seq), this.kmerFilter, this.doReverseCompliment, this.repeatWeight);
 	}
 
 	protected void processAddition(SequenceSketch seqHashes)
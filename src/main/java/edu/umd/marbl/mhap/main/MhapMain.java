@@ -33,14 +33,24 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import edu.umd.marbl.mhap.impl.CandidatePrescreen;
+import edu.umd.marbl.mhap.impl.IndexSettings;
+import edu.umd.marbl.mhap.impl.IndexWorker;
 import edu.umd.marbl.mhap.impl.MhapRuntimeException;
 import edu.umd.marbl.mhap.impl.MinHashSearch;
 import edu.umd.marbl.mhap.impl.SequenceId;
 import edu.umd.marbl.mhap.impl.SequenceSketchStreamer;
+import edu.umd.marbl.mhap.sketch.BottomOverlapSketch.MatchData.Rejection;
 import edu.umd.marbl.mhap.sketch.FrequencyCounts;
+import edu.umd.marbl.mhap.sketch.HashUtils;
+import edu.umd.marbl.mhap.sketch.MinHashSketch;
 import edu.umd.marbl.mhap.utils.ParseOptions;
 import edu.umd.marbl.mhap.utils.Utils;
 
@@ -48,8 +58,22 @@ public final class MhapMain
 {
 	private final double acceptScore;
 	private final String inFile;
+	private final String loadIndexFile;
+	private final String indexWorkerBind;
+	private final int indexWorkerPort;
+	private final String indexWorkerTables;
+	private final List<InetSocketAddress> indexWorkers;
 	private final FrequencyCounts kmerFilter;
 	private final int kmerSize;
+	private final int bandSize;
+	private final int minHashBits;
+	private final int minHashMode;
+	private final boolean prefixFilter;
+	private final CandidatePrescreen prescreen;
+	private final int queryBatchSize;
+	private final int numMinBands;
+	private final int maxBucketSize;
+	private final boolean downsampleBuckets;
 	private final double maxShift;
 	private final int minStoreLength;
 	private final int minOlapLength;
@@ -59,10 +83,15 @@ public final class MhapMain
 	protected final int numThreads;
 	private final int orderedKmerSize;
 	private final int orderedSketchSize;
+	private final double orderedSketchDensity;
+	private final int orderedSketchMinSize;
+	private final int orderedSketchMaxSize;
 	private final String processFile;
+	private final String saveIndexFile;
 	private final String toFile;
 	private final double repeatWeight;
 	private final boolean doReverseCompliment;
+	private final boolean canonicalIndex;
 
 	private static final double DEFAULT_OVERLAP_ACCEPT_SCORE = 0.78;
 
@@ -90,6 +119,10 @@ public final class MhapMain
 
 	private static final int DEFAULT_ORDERED_SKETCH_SIZE = 1536;
 
+	private static final int DEFAULT_ORDERED_SKETCH_MIN_SIZE = 128;
+
+	private static final int DEFAULT_ORDERED_SKETCH_MAX_SIZE = 16384;
+
 	public static void main(String[] args) throws Exception
 	{
 		// set the locale
@@ -101,6 +134,12 @@ public final class MhapMain
 		options.addStartTextLine("\tUsage 1 (direct execution): java -server -Xmx<memory> -jar <MHAP jar> -s<fasta/dat from/self file> [-q<fasta/dat to file>] [-f<kmer filter list, must be sorted>]");
 		options.addStartTextLine("\tUsage 2 (generate precomputed binaries): java -server -Xmx<memory> -jar <MHAP jar> -p<directory of fasta files> -q <output directory> [-f<kmer filter list, must be sorted>]");
 		options.addOption("-s", "Usage 1 only. The FASTA or binary dat file (see Usage 2) of reads that will be stored in a box, and that all subsequent reads will be compared to.", "");
+		options.addOption("--save-index", "Usage 1 only. After the box of -s reads is indexed, store the index to this file, so that subsequent runs can load it with --load-index.", "");
+		options.addOption("--load-index", "Usage 1 only. Load the box from an index file stored with --save-index, instead of indexing the -s reads. The sketch settings must match the ones used to create the index, which is checked when the index is loaded.", "");
+		options.addOption("--index-worker-bind", "[string], Local address the index worker listens on. Empty listens only on the loopback interface, for coordinators on the same machine. The connections are not authenticated, so only bind to an address on a trusted network.", "");
+		options.addOption("--index-worker-port", "[int], Instead of searching, serve the tables of the --load-index file on this port to an MHAP run started with --index-workers. The worker runs until it is killed.", 0);
+		options.addOption("--index-worker-tables", "[string], Range of tables served by the index worker, given as first:end with the end table excluded. Empty serves all tables.", "");
+		options.addOption("--index-workers", "[string], Comma-separated host:port list of the index workers that count the first stage hits of the --load-index file, instead of mapping the tables in this process. The workers must together serve all tables.", "");
 		options.addOption("-q", "Usage 1: The FASTA file of reads, or a directory of files, that will be compared to the set of reads in the box (see -s). Usage 2: The output directory for the binary formatted dat files.", "");
 		options.addOption("-p", "Usage 2 only. The directory containing FASTA files that should be converted to binary format for storage.", "");
 		options.addOption("-f", "k-mer filter file used for filtering out highly repetative k-mers. Must be sorted in descending order of frequency (second column).", "");
@@ -110,18 +149,33 @@ public final class MhapMain
 		options.addOption("--filter-threshold", "[double], The cutoff at which the k-mer in the k-mer filter file is considered repetitive. This value for a specific k-mer is specified in the second column in the filter file. If no filter file is provided, this option is ignored.", DEFAULT_FILTER_CUTOFF);
 		options.addOption("--max-shift", "[double], Region size to the left and right of the estimated overlap, as derived from the median shift and sequence length, where a k-mer matches are still considered valid. Second stage filter only.", DEFAULT_MAX_SHIFT_PERCENT);
 		options.addOption("--num-min-matches", "[int], Minimum # min-mer that must be shared before computing second stage filter. Any sequences below that value are considered non-overlapping.", DEFAULT_NUM_MIN_MATCHES);
+		options.addOption("--min-hash-bits", "[int], Number of bits kept from each min-mer (1, 2, 4, 8, 16 or 32). Fewer bits reduce the memory of the stored sketches, at the cost of more random first stage matches, so values <16 should be combined with --band-size.", 32);
+		options.addOption("--minhash-mode", "[int], How the min-mers are computed. 0) Classic MinHash, every k-mer is rehashed for each min-mer. 1) One permutation MinHash, every k-mer is hashed once into a single min-mer, and empty min-mers are filled by densification. Much faster for long reads. 2) Weighted sampling MinHash, where a weighted k-mer samples its minimum from a single hash per min-mer, instead of repeating the hash for each unit of tf-idf weight. Faster when the weights are large. This mode estimates the probability Jaccard of the weighted k-mer sets, not the similarity of mode 0, so it is not a drop-in replacement for mode 0 and --threshold values tuned for one mode do not carry over to the other. Precomputed dat files and saved indexes must be built with the same setting.", MinHashSketch.MODE_CLASSIC);
+		options.addOption("--band-size", "[int], Number of consecutive min-mers combined into a single band key. Values >1 replace the per min-mer counting of the first stage with banded LSH, where sequences must share --num-min-bands identical bands. Must divide --num-hashes.", 1);
+		options.addOption("--num-min-bands", "[int], Minimum # bands that must be shared before computing second stage filter, when --band-size is >1.", 1);
+		options.addOption("--prefix-filter", "Visit the tables from the shortest to the longest matching posting list, and stop admitting new candidates once they can no longer reach --num-min-matches. Gives the same results with fewer counter updates for queries that hit large buckets.", false);
+		options.addOption("--prescreen-min-overlap", "[int], Reject the candidates before the second stage filter, if the # of min-mers they share with the query is too small for an overlap of at least this length to reach --threshold. Shorter overlaps may be lost. 0 disables the rejection.", 0);
+		options.addOption("--prescreen-accept-identity", "[double], Accept the candidates without the second stage filter, if the # of min-mers they share with the query gives at least this identity even when the overlap spans the whole shorter read. The overlap is then placed from the shift of the shared k-mers, and reported with that identity. 0 disables the acceptance.", 0.0);
+		options.addOption("--query-batch-size", "[int], Number of queries of a thread that are looked up in the tables together. Larger batches walk each table in order for the whole batch, which is faster for indexes much larger than the CPU cache.", 1);
 		options.addOption("--num-threads", "[int], nNumber of threads to use for computation. Typically set to #cores.", DEFAULT_NUM_THREADS);
 		options.addOption("--repeat-weight", "[double] Repeat suppression strength for tf-idf weighing. <0.0 do unweighted MinHash (version 1.0), >=1.0 do only the tf weighing. To perform no idf weighting, do no supply -f option. ", DEFAULT_REPEAT_WEIGHT);
 		options.addOption("--repeat-idf-scale", "[double] The upper range of the idf (from tf-idf) scale. The full scale will be [1,X], where X is the parameter.", DEFAULT_REPEAT_IDF_SCALE);
 		options.addOption("--ordered-kmer-size", "[int] The size of k-mers used in the ordered second stage filter.", DEFAULT_ORDERED_KMER_SIZE);
 		options.addOption("--ordered-sketch-size", "[int] The sketch size for second stage filter.", DEFAULT_ORDERED_SKETCH_SIZE);
+		options.addOption("--ordered-sketch-density", "[double] If >0, the sketch size for second stage filter is set per read to this many k-mers per kb, instead of --ordered-sketch-size, and kept within [--ordered-sketch-min-size, --ordered-sketch-max-size].", 0.0);
+		options.addOption("--ordered-sketch-min-size", "[int] The smallest sketch size for second stage filter, when --ordered-sketch-density is set.", DEFAULT_ORDERED_SKETCH_MIN_SIZE);
+		options.addOption("--ordered-sketch-max-size", "[int] The largest sketch size for second stage filter, when --ordered-sketch-density is set.", DEFAULT_ORDERED_SKETCH_MAX_SIZE);
 		options.addOption("--min-store-length", "[int], The minimum length of the read that is stored in the box. Used to filter out short reads from FASTA file.", DEFAULT_MIN_STORE_LENGTH);
 		options.addOption("--min-olap-length", "[int], The minimum length of the read that used for overlapping. Used to filter out short reads from FASTA file.", DEFAULT_MIN_OVL_LENGTH);
+		options.addOption("--max-bucket-size", "[int], Maximum number of stored sequences that can share a min-mer in a single table. Larger buckets come from repeats: they are ignored during the search, and the --num-min-matches cutoff is scaled to the remaining tables. 0 means no limit.", 0);
+		options.addOption("--downsample-buckets", "Keep an evenly spaced subset of --max-bucket-size sequences of the large buckets, instead of ignoring them.", false);
 		options.addOption("--no-self", "Do not compute the overlaps between sequences inside a box. Should be used when the to and from sequences are coming from different files.", false);
 		options.addOption("--store-full-id", "Store full IDs as seen in FASTA files, rather than storing just the sequence position in the file. Some FASTA files have long IDS, slowing output of results. This options is ignored when using compressed file format. Indexed file (-s) is indexed first, followed by -q files in alphabetical order.", false);
 		options.addOption("--supress-noise", "[int] 0) Does nothing, 1) completely removes any k-mers not specified in the filter file, 2) supresses k-mers not specified in the filter file, similar to repeats. ", 0);
 		options.addOption("--no-tf", "Do not perform the tf weighing, in the tf-idf weighing.", false);
+		options.addOption("--legacy-kmer-hash", "Hash the k-mers with Murmur3 over their strings, as done by older versions, instead of the rolling 2-bit hash. K-mers with bases other than A, C, G or T are skipped by the rolling hash. Precomputed dat files and saved indexes must be built with the same setting.", false);
 		options.addOption("--no-rc", "Do not store or do comparison of the reverse compliment strings.", false);
+		options.addOption("--canonical-index", "Store a single sketch of canonical k-mers per sequence, which serves both strands, instead of a sketch per strand. The orientation of an overlap is resolved by the second stage filter. Halves the size of the index. Precomputed dat files and saved indexes must be built with the same setting.", false);
 		options.addOption("--settings", "Set all unset parameters for the default settings. Same defaults are applied to Nanopore and Pacbio reads. 0) None, 1) Default, 2) Fast, 3) Sensitive.", 0);
 		
 		if (!options.process(args))
@@ -198,13 +252,27 @@ public final class MhapMain
 		}		
 		
 		
-		if (options.get("-s").getString().isEmpty() && options.get("-p").getString().isEmpty())
+		if (options.get("-s").getString().isEmpty() && options.get("-p").getString().isEmpty() && options.get("--load-index").getString().isEmpty())
 		{
-			System.out.println("Please set the -s or the -p options. See options below:");
+			System.out.println("Please set the -s, the -p, or the --load-index options. See options below:");
 			System.out.println(options.helpMenuString());
 			System.exit(1);
 		}
 		
+		if (!options.get("-s").getString().isEmpty() && !options.get("--load-index").getString().isEmpty())
+		{
+			System.out.println("The -s and the --load-index options cannot be used together.");
+			System.exit(1);
+		}
+		
+		//the loaded tables keep the bucket caps they were built with
+		if (!options.get("--load-index").getString().isEmpty() 
+				&& (options.get("--max-bucket-size").getInteger()!=0 || options.get("--downsample-buckets").getBoolean()))
+		{
+			System.out.println("The --max-bucket-size and the --downsample-buckets options cannot be used with the --load-index option. Set them when the index is built with --save-index.");
+			System.exit(1);
+		}
+		
 		if (!options.get("-p").getString().isEmpty() && options.get("-q").getString().isEmpty() )
 		{
 			System.out.println("Please set the -q option. See options below:");
@@ -226,6 +294,32 @@ public final class MhapMain
 			System.exit(1);
 		}
 		
+		//check for file existance
+		if (!options.get("--load-index").getString().isEmpty() && !new File(options.get("--load-index").getString()).exists())
+		{
+			System.out.println("Could not find requested file/folder: "+options.get("--load-index").getString());
+			System.exit(1);
+		}
+		
+		if ((options.get("--index-worker-port").getInteger()!=0 || !options.get("--index-workers").getString().isEmpty()) && options.get("--load-index").getString().isEmpty())
+		{
+			System.out.println("The --index-worker-port and the --index-workers options require the --load-index option.");
+			System.exit(1);
+		}
+		
+		if (!options.get("--index-workers").getString().isEmpty() && options.get("--prefix-filter").getBoolean())
+		{
+			System.out.println("The --prefix-filter and the --index-workers options cannot be used together.");
+			System.exit(1);
+		}
+		
+		//check range
+		if (options.get("--index-worker-port").getInteger()<0 || options.get("--index-worker-port").getInteger()>65535)
+		{
+			System.out.println("The index worker port must be in [0,65535].");
+			System.exit(1);
+		}
+		
 		//check for file existance
 		if (!options.get("-q").getString().isEmpty() && !new File(options.get("-q").getString()).exists())
 		{
@@ -261,6 +355,48 @@ public final class MhapMain
 			System.exit(1);
 		}
 
+		//check range
+		if (options.get("--band-size").getInteger()<=0 || options.get("--num-hashes").getInteger()%options.get("--band-size").getInteger()!=0)
+		{
+			System.out.println("Band size must be positive, and divide the number of hashes.");
+			System.exit(1);
+		}
+
+		//check range
+		if (!MinHashSketch.isValidMode(options.get("--minhash-mode").getInteger()))
+		{
+			System.out.println("The --minhash-mode parameter must be in [0,2].");
+			System.exit(1);
+		}
+
+		//check range
+		if (!MinHashSketch.isValidNumBits(options.get("--min-hash-bits").getInteger()))
+		{
+			System.out.println("Number of bits per min-mer must be 1, 2, 4, 8, 16 or 32.");
+			System.exit(1);
+		}
+
+		//check range
+		if (options.get("--num-min-bands").getInteger()<=0)
+		{
+			System.out.println("Minimum number of bands must be positive.");
+			System.exit(1);
+		}
+
+		//check range
+		if (options.get("--query-batch-size").getInteger()<=0)
+		{
+			System.out.println("The query batch size must be positive.");
+			System.exit(1);
+		}
+
+		//check range
+		if (options.get("--max-bucket-size").getInteger()<0)
+		{
+			System.out.println("The maximum bucket size must be >=0.");
+			System.exit(1);
+		}
+
 		//check range
 		if (options.get("--min-store-length").getInteger()<0)
 		{
@@ -289,6 +425,35 @@ public final class MhapMain
 			System.exit(1);
 		}
 
+		//check range
+		if (options.get("--ordered-sketch-density").getDouble()<0.0)
+		{
+			System.out.println("The ordered sketch density must be >=0.");
+			System.exit(1);
+		}
+
+		//check range
+		if (options.get("--ordered-sketch-min-size").getInteger()<=0 || options.get("--ordered-sketch-max-size").getInteger()<options.get("--ordered-sketch-min-size").getInteger())
+		{
+			System.out.println("The ordered sketch sizes must be 0<min-size<=max-size.");
+			System.exit(1);
+		}
+
+		//check range
+		if (options.get("--prescreen-min-overlap").getInteger()<0)
+		{
+			System.out.println("The prescreen minimum overlap length must be >=0.");
+			System.exit(1);
+		}
+
+		//check range
+		double prescreenAcceptIdentity = options.get("--prescreen-accept-identity").getDouble();
+		if (prescreenAcceptIdentity!=0.0 && (prescreenAcceptIdentity<options.get("--threshold").getDouble() || prescreenAcceptIdentity>1.0))
+		{
+			System.out.println("The prescreen accept identity must be 0, or threshold<=identity<=1.0.");
+			System.exit(1);
+		}
+
 		//check range
 		if (options.get("--supress-noise").getInteger()<0 || options.get("--supress-noise").getInteger()>2)
 		{
@@ -296,12 +461,20 @@ public final class MhapMain
 			System.exit(1);
 		}
 
+		if (options.get("--canonical-index").getBoolean() && options.get("--no-rc").getBoolean())
+		{
+			System.out.println("The --canonical-index parameter compares both strands, and cannot be used with --no-rc.");
+			System.exit(1);
+		}
+
 		//check other options
 		//TODO move into the class
 		if (options.get("--store-full-id").getBoolean())
 			SequenceId.STORE_FULL_ID = true;
 		else
 			SequenceId.STORE_FULL_ID = false;
+		
+		HashUtils.LEGACY_KMER_HASH = options.get("--legacy-kmer-hash").getBoolean();
 
 		
 		//printing the options used
@@ -320,6 +493,15 @@ public final class MhapMain
 	{
 		this.processFile = options.get("-p").getString();
 		this.inFile = options.get("-s").getString();
+		this.loadIndexFile = options.get("--load-index").getString();
+		this.indexWorkerBind = options.get("--index-worker-bind").getString();
+		this.indexWorkerPort = options.get("--index-worker-port").getInteger();
+		this.indexWorkerTables = options.get("--index-worker-tables").getString();
+		this.indexWorkers = new ArrayList<>();
+		for (String address : options.get("--index-workers").getString().split(","))
+			if (!address.trim().isEmpty())
+				this.indexWorkers.add(parseAddress(address.trim()));
+		this.saveIndexFile = options.get("--save-index").getString();
 		this.toFile = options.get("-q").getString();
 		this.noSelf = options.get("--no-self").getBoolean();
 		this.numThreads = options.get("--num-threads").getInteger();
@@ -334,7 +516,26 @@ public final class MhapMain
 		this.repeatWeight = options.get("--repeat-weight").getDouble();
 		this.orderedKmerSize = options.get("--ordered-kmer-size").getInteger();
 		this.orderedSketchSize = options.get("--ordered-sketch-size").getInteger();
+		this.orderedSketchDensity = options.get("--ordered-sketch-density").getDouble();
+		this.orderedSketchMinSize = options.get("--ordered-sketch-min-size").getInteger();
+		this.orderedSketchMaxSize = options.get("--ordered-sketch-max-size").getInteger();
 		this.doReverseCompliment = !options.get("--no-rc").getBoolean();
+		this.canonicalIndex = options.get("--canonical-index").getBoolean();
+		this.maxBucketSize = options.get("--max-bucket-size").getInteger();
+		this.bandSize = options.get("--band-size").getInteger();
+		this.minHashBits = options.get("--min-hash-bits").getInteger();
+		this.minHashMode = options.get("--minhash-mode").getInteger();
+		this.prefixFilter = options.get("--prefix-filter").getBoolean();
+		
+		int prescreenMinOverlap = options.get("--prescreen-min-overlap").getInteger();
+		double prescreenAcceptIdentity = options.get("--prescreen-accept-identity").getDouble();
+		if (prescreenMinOverlap>0 || prescreenAcceptIdentity>0.0)
+			this.prescreen = new CandidatePrescreen(this.kmerSize, this.acceptScore, prescreenMinOverlap, prescreenAcceptIdentity);
+		else
+			this.prescreen = null;
+		this.queryBatchSize = options.get("--query-batch-size").getInteger();
+		this.numMinBands = options.get("--num-min-bands").getInteger();
+		this.downsampleBuckets = options.get("--downsample-buckets").getBoolean();
 		
 		// read in the kmer filter set
 		String filterFile = options.get("-f").getString();
@@ -380,6 +581,43 @@ public final class MhapMain
 		long startTime = System.nanoTime();
 		long processTime = System.nanoTime();
 		
+		//if serving the tables to a coordinating process
+		if (this.indexWorkerPort>0)
+		{
+			int fromTable = 0;
+			int toTable = Integer.MAX_VALUE;
+			if (!this.indexWorkerTables.isEmpty())
+			{
+				String[] range = this.indexWorkerTables.split(":");
+				if (range.length!=2)
+					throw new MhapRuntimeException("Table range must be in first:end format.");
+				
+				fromTable = Integer.parseInt(range[0].trim());
+				toTable = Integer.parseInt(range[1].trim());
+			}
+			
+			IndexWorker worker = new IndexWorker(this.loadIndexFile, fromTable, toTable);
+			System.err.println("Time (s) to load index from file: " + (System.nanoTime() - processTime)*1.0e-9);
+			
+			InetAddress bindAddress;
+			if (this.indexWorkerBind.isEmpty())
+				bindAddress = InetAddress.getLoopbackAddress();
+			else
+			{
+				try
+				{
+					bindAddress = InetAddress.getByName(this.indexWorkerBind);
+				}
+				catch (UnknownHostException e)
+				{
+					throw new MhapRuntimeException("Invalid index worker bind address "+this.indexWorkerBind+".", e);
+				}
+			}
+			
+			worker.serve(bindAddress, this.indexWorkerPort);
+			return;
+		}
+		
 		//if processing a directory
 		if (this.processFile!=null && !this.processFile.isEmpty())
 		{
@@ -438,9 +676,12 @@ public final class MhapMain
 				outputString = toDirectory.getPath()+File.separator+outputString+".dat";
 				
 				//store the file to disk
-				seqStreamer.writeToBinary(outputString, false, this.numThreads);
+				seqStreamer.writeToBinary(outputString, this.canonicalIndex, this.numThreads);
 				
-				System.err.println("Processed "+seqStreamer.getNumberProcessed()+" sequences (fwd and rev).");
+				if (this.canonicalIndex)
+					System.err.println("Processed "+seqStreamer.getNumberProcessed()+" sequences (canonical).");
+				else
+					System.err.println("Processed "+seqStreamer.getNumberProcessed()+" sequences (fwd and rev).");
 				System.err.println("Read, hashed, and stored file "+pf.getPath()+" to "+outputString+".");
 				System.err.println("Time (s): " + (System.nanoTime() - startTime)*1.0e-9);
 			}
@@ -450,18 +691,55 @@ public final class MhapMain
 			return;
 		}
 		
-		System.err.println("Processing files for storage in reverse index...");
-
 		// read and index the kmers
 		int seqNumberProcessed = 0;
-				
+		
 		//create search object
-		SequenceSketchStreamer seqStreamer = getSequenceHashStreamer(this.inFile, seqNumberProcessed);
-		MinHashSearch hashSearch = getMatchSearch(seqStreamer);
+		MinHashSearch hashSearch;
+		SequenceSketchStreamer seqStreamer;
+		if (this.loadIndexFile!=null && !this.loadIndexFile.isEmpty())
+		{
+			System.err.println("Loading reverse index from file "+this.loadIndexFile+"...");
+			
+			hashSearch = MinHashSearch.fromIndexFile(this.loadIndexFile, getIndexSettings(), this.indexWorkers, this.numMinMatches, this.numMinBands, this.prefixFilter, this.queryBatchSize, this.numThreads, false,
+					this.minStoreLength, this.maxShift, this.acceptScore, this.prescreen);
+			
+			if (hashSearch.isCanonical() != this.canonicalIndex)
+				throw new MhapRuntimeException("Index file "+this.loadIndexFile+" must be loaded with the same --canonical-index setting it was built with.");
+			
+			if (hashSearch.isCanonical())
+				seqNumberProcessed += (int)hashSearch.getNumberSequenceHashed();
+			else
+				seqNumberProcessed += (int)(hashSearch.getNumberSequenceHashed()/2L);
+			System.err.println("Time (s) to load index from file: " + (System.nanoTime() - processTime)*1.0e-9);
+		}
+		else
+		{
+			System.err.println("Processing files for storage in reverse index...");
 
-		seqNumberProcessed += seqStreamer.getNumberProcessed()/2;
-		System.err.println("Processed "+seqStreamer.getNumberProcessed()+" unique sequences (fwd and rev).");
-		System.err.println("Time (s) to read and hash from file: " + (System.nanoTime() - processTime)*1.0e-9);
+			seqStreamer = getSequenceHashStreamer(this.inFile, seqNumberProcessed);
+			hashSearch = getMatchSearch(seqStreamer);
+	
+			if (this.canonicalIndex)
+			{
+				seqNumberProcessed += seqStreamer.getNumberProcessed();
+				System.err.println("Processed "+seqStreamer.getNumberProcessed()+" unique sequences (canonical).");
+			}
+			else
+			{
+				seqNumberProcessed += seqStreamer.getNumberProcessed()/2;
+				System.err.println("Processed "+seqStreamer.getNumberProcessed()+" unique sequences (fwd and rev).");
+			}
+			System.err.println("Time (s) to read and hash from file: " + (System.nanoTime() - processTime)*1.0e-9);
+		}
+		
+		if (this.saveIndexFile!=null && !this.saveIndexFile.isEmpty())
+		{
+			startTime = System.nanoTime();
+			hashSearch.writeIndex(this.saveIndexFile, getIndexSettings());
+			System.err.println("Stored reverse index to file "+this.saveIndexFile+".");
+			System.err.println("Time (s) to store index: " + (System.nanoTime() - startTime)*1.0e-9);
+		}
 
 		long startTotalScoringTime = System.nanoTime();
 
@@ -549,12 +827,41 @@ public final class MhapMain
 		
 		//output final stats
 		outputFinalStat(hashSearch);
+		
+		hashSearch.close();
+	}
+
+	private static InetSocketAddress parseAddress(String address)
+	{
+		int split = address.lastIndexOf(':');
+		if (split<=0)
+			throw new MhapRuntimeException("Index worker address "+address+" must be in host:port format.");
+		
+		try
+		{
+			return new InetSocketAddress(address.substring(0, split), Integer.parseInt(address.substring(split+1)));
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new MhapRuntimeException("Invalid index worker address "+address+".", e);
+		}
+	}
+
+	/**
+	 * @return the sketch settings that the band keys of an index file depend on
+	 */
+	private IndexSettings getIndexSettings()
+	{
+		return new IndexSettings(this.kmerSize, this.orderedKmerSize, this.numHashes, this.minHashMode, this.minHashBits, HashUtils.LEGACY_KMER_HASH,
+				this.repeatWeight, this.kmerFilter != null ? this.kmerFilter.getFingerprint() : 0L);
 	}
 
 	public MinHashSearch getMatchSearch(SequenceSketchStreamer hashStreamer) throws IOException
 	{
 		return new MinHashSearch(hashStreamer, this.numHashes, this.numMinMatches, this.numThreads, false,
-				this.minStoreLength, this.maxShift, this.acceptScore, this.doReverseCompliment);
+				this.minStoreLength, this.maxShift, this.acceptScore, this.doReverseCompliment, this.canonicalIndex, this.maxBucketSize, this.downsampleBuckets,
+				this.bandSize, this.numMinBands, this.minHashBits, this.prefixFilter,
+				this.queryBatchSize, this.prescreen);
 	}
 	
 	public SequenceSketchStreamer getSequenceHashStreamer(String file, int offset) throws IOException
@@ -563,8 +870,8 @@ public final class MhapMain
 		if (file.endsWith(".dat"))
 			seqStreamer = new SequenceSketchStreamer(file, this.minOlapLength, offset);
 		else
-			seqStreamer = new SequenceSketchStreamer(file, this.minOlapLength, this.kmerSize, this.numHashes,
-					this.orderedKmerSize, this.orderedSketchSize, this.kmerFilter, this.doReverseCompliment, this.repeatWeight, offset);
+			seqStreamer = new SequenceSketchStreamer(file, this.minOlapLength, this.kmerSize, this.numHashes, this.minHashBits, this.minHashMode,
+					this.orderedKmerSize, this.orderedSketchSize, this.orderedSketchDensity, this.orderedSketchMinSize, this.orderedSketchMaxSize, this.kmerFilter, this.canonicalIndex, this.repeatWeight, offset);
 
 		return seqStreamer;
 	}
@@ -580,12 +887,22 @@ public final class MhapMain
 				/ (double) (matchSearch.getNumberSequencesSearched()));
 		System.err.println("Average number of table elements processed per match: " + (double) matchSearch.getNumberElementsProcessed()
 				/ (double) (matchSearch.getMatchesProcessed()));
+		if (matchSearch.getNumberTablesSkipped() > 0)
+			System.err.println("Average number of stop-listed tables per lookup: " + (double) matchSearch.getNumberTablesSkipped()
+					/ (double) (matchSearch.getNumberSequencesSearched()));
 		System.err.println("Average % of hashed sequences hit per lookup: " + (double) matchSearch.getNumberSequencesHit()
 				/ (double) (matchSearch.size() * matchSearch.getNumberSequencesSearched()) * 100.0);
 		System.err.println("Average % of hashed sequences hit that are matches: "
 				+ (double) matchSearch.getMatchesProcessed() / (double) matchSearch.getNumberSequencesHit() * 100.0);
 		System.err.println("Average % of hashed sequences fully compared that are matches: " 
 				+ (double)matchSearch.getMatchesProcessed()/(double)matchSearch.getNumberSequencesFullyCompared()*100.0);
+		System.err.println("Second stage comparisons rejected for too few shared k-mers: " + matchSearch.getNumberOverlapRejections(Rejection.SHARED_KMERS)
+				+ ", inconsistent shifts: " + matchSearch.getNumberOverlapRejections(Rejection.SHIFTS)
+				+ ", Jaccard upper bound: " + matchSearch.getNumberOverlapRejections(Rejection.JACCARD_BOUND)
+				+ ", score: " + matchSearch.getNumberOverlapRejections(Rejection.SCORE));
+		if (this.prescreen != null)
+			System.err.println("Candidates decided by the prescreen, rejected: " + matchSearch.getNumberPrescreenRejected()
+					+ ", accepted: " + matchSearch.getNumberPrescreenAccepted());
 		System.err.flush();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the k smallest (hash, position) pairs offered to it in a bounded max-heap, ordered by hash and then by
+ * position.
+ */
+final class BottomKSelector
+{
+	private final long[] heap;
+	private int size;
+
+	private static long entry(int hash, int position)
+	{
+		return ((long) hash << 32) | (position & 0xffffffffL);
+	}
+
+	public BottomKSelector(int capacity)
+	{
+		this.heap = new long[Math.max(0, capacity)];
+		this.size = 0;
+	}
+
+	public void offer(int hash, int position)
+	{
+		long value = entry(hash, position);
+
+		if (this.size < this.heap.length)
+		{
+			// sift up the new leaf
+			int child = this.size++;
+			while (child > 0)
+			{
+				int parent = (child - 1) >>> 1;
+				if (this.heap[parent] >= value)
+					break;
+
+				this.heap[child] = this.heap[parent];
+				child = parent;
+			}
+			this.heap[child] = value;
+		}
+		else
+		if (this.size > 0 && value < this.heap[0])
+		{
+			// replace the largest entry, and sift it down
+			int parent = 0;
+			while (true)
+			{
+				int child = 2 * parent + 1;
+				if (child >= this.size)
+					break;
+				if (child + 1 < this.size && this.heap[child + 1] > this.heap[child])
+					child++;
+				if (this.heap[child] <= value)
+					break;
+
+				this.heap[parent] = this.heap[child];
+				parent = child;
+			}
+			this.heap[parent] = value;
+		}
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Stores the kept pairs in increasing order, and empties the selector.
+	 */
+	public void drainSorted(int[] hashes, int[] positions)
+	{
+		Arrays.sort(this.heap, 0, this.size);
+
+		for (int iter = 0; iter < this.size; iter++)
+		{
+			hashes[iter] = (int) (this.heap[iter] >> 32);
+			positions[iter] = (int) this.heap[iter];
+		}
+
+		this.size = 0;
+	}
+}
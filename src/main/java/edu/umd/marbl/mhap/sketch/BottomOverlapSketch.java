@@ -29,13 +29,13 @@
  */
 package edu.umd.marbl.mhap.sketch;
 
-import it.unimi.dsi.fastutil.ints.IntArrays;
-
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
 import java.util.Arrays;
 
 import edu.umd.marbl.mhap.impl.OverlapInfo;
@@ -43,51 +43,80 @@ import edu.umd.marbl.mhap.utils.Utils;
 
 public final class BottomOverlapSketch
 {
-	private final static class EdgeData
+	/**
+	 * Working storage of the overlap computation between two sketches. It can be reused for any number of sketch pairs
+	 * with {@link #reset(BottomOverlapSketch, BottomOverlapSketch, double)}, so that a thread does not allocate the
+	 * match, shift and edge storage again for each candidate. The arrays only grow when a pair needs more room.
+	 * Reporting an overlap with {@link #getOverlapInfo()} still allocates its result.
+	 */
+	public final static class MatchData
 	{
-		public final int a1;
-		public final int a2;
-		public final int b1;
-		public final int b2;
-		public final int count;
-		
-		public EdgeData(int a1, int a2, int b1, int b2, int count)
+		/**
+		 * Step of {@link BottomOverlapSketch#computeOverlap(BottomOverlapSketch, double, double, MatchData)} that
+		 * rejected the pair, in the order in which the steps are performed.
+		 */
+		public enum Rejection
 		{
-			this.a1 = a1;
-			this.a2 = a2;
-			this.b1 = b1;
-			this.b2 = b2;
-			this.count = count;
+			NONE, SHARED_KMERS, SHIFTS, JACCARD_BOUND, SCORE
 		}
-	}
-	
-	public final static class MatchData
-	{
+		
 		private int absMaxShiftInOverlap;
 		private int count; 
-		private final double maxShiftPercent;
+		private int edgeA1;
+		private int edgeA2;
+		private int edgeB1;
+		private int edgeB2;
+		private int edgeCount;
+		private boolean hasOverlap;
+		private double maxShiftPercent;
 		private int medianShift;
 		private boolean needRecompute;
+		
+		//the UMVU estimate of the edges needs at least this many matches
+		private static final int MIN_EDGE_MATCHES = 3;
+		
+		private int numShared;
 		public int[] pos1Index;
 		public int[] pos2Index;
 		public int[] posShift;
-		private final int seqLength1;
-		private final int seqLength2;
+		private double score;
+		private int seqLength1;
+		private int seqLength2;
+		private Rejection rejection;
+		private int[] shiftSelect;
+		private final SketchWindow window1;
+		private final SketchWindow window2;
+
+		public MatchData()
+		{
+			this.posShift = new int[64];
+			this.pos1Index = new int[this.posShift.length];
+			this.pos2Index = new int[this.posShift.length];
+			this.shiftSelect = new int[this.posShift.length];
+			this.window1 = new SketchWindow();
+			this.window2 = new SketchWindow();
+			
+			reset();
+		}
 
 		public MatchData(BottomOverlapSketch o1, BottomOverlapSketch o2, double maxShiftPercent)
 		{
-			this.seqLength1 = o1.getSequenceLength();
-			this.seqLength2 = o2.getSequenceLength();
-			
 			this.posShift = new int[Math.max(o1.size(), o2.size())/4+1];
 			this.pos1Index = new int[posShift.length];
 			this.pos2Index = new int[posShift.length];
+			this.shiftSelect = new int[posShift.length];
+			this.window1 = new SketchWindow();
+			this.window2 = new SketchWindow();
 			
-			this.maxShiftPercent = maxShiftPercent;
-			reset();
+			reset(o1, o2, maxShiftPercent);
 		}
 		
-		public EdgeData computeEdges()
+		/**
+		 * Computes the edges of the overlap from the matches within the valid shift.
+		 * 
+		 * @return false if there are not enough valid matches to estimate the edges
+		 */
+		public boolean computeEdges()
 		{
 			// storage for edge computation
 			int leftEdge1 = Integer.MAX_VALUE;
@@ -122,8 +151,8 @@ public final class BottomOverlapSketch
 				validCount++;
 			}
 
-			if (validCount < 3)
-				return null;
+			if (validCount < MIN_EDGE_MATCHES)
+				return false;
 
 			// get edge info uniformly minimum variance unbiased (UMVU) estimators
 			// a = (n*a-b)/(n-1)
@@ -133,7 +162,13 @@ public final class BottomOverlapSketch
 			int b1 = Math.max(0, (int) Math.round((double)(validCount * leftEdge2 - rightEdge2) / (double) (validCount - 1)));
 			int b2 = Math.min(this.seqLength2, (int) Math.round((double)(validCount * rightEdge2 - leftEdge2) / (double) (validCount - 1)));
 			
-			return new EdgeData(a1, a2, b1, b2, validCount);
+			this.edgeA1 = a1;
+			this.edgeA2 = a2;
+			this.edgeB1 = b1;
+			this.edgeB2 = b2;
+			this.edgeCount = validCount;
+			
+			return true;
 		}
 		
 		public int getAbsMaxShift()
@@ -148,6 +183,34 @@ public final class BottomOverlapSketch
 			return this.medianShift;
 		}
 		
+		/**
+		 * @return the number of k-mers shared by the two sketches, counted by the first merge
+		 */
+		public int getNumShared()
+		{
+			return this.numShared;
+		}
+		
+		/**
+		 * @return the step that rejected the last computed overlap, or {@link Rejection#NONE} if it was accepted
+		 */
+		public Rejection getRejection()
+		{
+			return this.rejection;
+		}
+		
+		/**
+		 * @return the overlap found by the last
+		 *         {@link BottomOverlapSketch#computeOverlap(BottomOverlapSketch, double, MatchData)}
+		 */
+		public OverlapInfo getOverlapInfo()
+		{
+			if (!this.hasOverlap)
+				return OverlapInfo.EMPTY;
+			
+			return new OverlapInfo(this.score, (double)this.edgeCount, this.edgeA1, this.edgeA2, this.edgeB1, this.edgeB2);
+		}
+		
 		public boolean isEmpty()
 		{
 			return this.count<=0;
@@ -194,7 +257,12 @@ public final class BottomOverlapSketch
 			{
 				if (this.count>0)
 				{
-					this.medianShift = Utils.quickSelect(Arrays.copyOf(this.posShift, this.count), this.count / 2, this.count);
+					// select on a copy, since the order of the shifts must be kept
+					if (this.shiftSelect.length < this.count)
+						this.shiftSelect = new int[this.posShift.length];
+					System.arraycopy(this.posShift, 0, this.shiftSelect, 0, this.count);
+					
+					this.medianShift = Utils.quickSelect(this.shiftSelect, this.count / 2, this.count);
 					
 					// get the actual overlap size
 					int leftPosition = Math.max(0, -this.medianShift);
@@ -237,6 +305,18 @@ public final class BottomOverlapSketch
 			this.count = 0;
 			this.needRecompute = true;
 		}
+		
+		public void reset(BottomOverlapSketch o1, BottomOverlapSketch o2, double maxShiftPercent)
+		{
+			this.seqLength1 = o1.getSequenceLength();
+			this.seqLength2 = o2.getSequenceLength();
+			this.maxShiftPercent = maxShiftPercent;
+			this.hasOverlap = false;
+			this.numShared = 0;
+			this.rejection = Rejection.NONE;
+			
+			reset();
+		}
 
 		public int size()
 		{
@@ -298,61 +378,56 @@ public final class BottomOverlapSketch
 	}
 	
 	private final int kmerSize;
-	private final int[][] orderedHashes;
+	private final int[] hashes;
+	//entry indices in position order, null if the sketch is too large for char indices
+	private final char[] positionOrder;
+	private final int[] positions;
 	private final int seqLength;
 
-	private static double computeKBottomSketchJaccard(int[][] seq1Hashes, int[][] seq2Hashes, int medianShift, int absMaxShiftInOverlap, int a1, int a2, int b1, int b2)
+	//a window copy is only worth it if it skips most of the sketch
+	private static final int MAX_WINDOW_FRACTION = 4;
+	private static final int MAX_INDEXED_SIZE = Character.MAX_VALUE + 1;
+
+	/**
+	 * Estimates the Jaccard similarity from the k smallest hashes of the union of the two overlaps. The sketches can
+	 * be of different sizes: the sketch with the smaller largest hash has at least k k-mers inside its overlap, so
+	 * the k smallest hashes of the union are all below the largest hash of either sketch, where both sketches keep
+	 * every k-mer of their sequence.
+	 *
+	 * @param k
+	 *            the smaller number of k-mers of the two sketches inside their overlap, see
+	 *            {@link #countInRange(int, int)}
+	 */
+	private static double computeKBottomSketchJaccard(SketchWindow window1, SketchWindow window2, int k, int a1, int a2, int b1, int b2)
 	{
-		//get k for first string
-		int s1 = 0;
-		int[][] array1 = new int[seq1Hashes.length][];
-		for (int i=0; i<seq1Hashes.length; i++)
-		{
-			int pos = seq1Hashes[i][1];
-			if (pos >= a1 && pos <= a2)
-			{
-				array1[s1] = seq1Hashes[i];
-				s1++;
-			}
-		}
-		
-		//get k for second string
-		int s2 = 0;
-		int[][] array2 = new int[seq2Hashes.length][];
-		for (int j=0; j<seq2Hashes.length; j++)
-		{
-			int pos = seq2Hashes[j][1];
-			if (pos >= b1 && pos <= b2)
-			{
-				array2[s2] = seq2Hashes[j];
-				s2++;
-			}
-		}
-		
-		//compute k
-		int k = Math.min(s1,s2);
+		int[] hashes1 = window1.hashes;
+		int[] positions1 = window1.positions;
+		int length1 = window1.length;
+		int[] hashes2 = window2.hashes;
+		int[] positions2 = window2.positions;
+		int length2 = window2.length;
 		
 		//empty has jaccard of 1
 		if (k==0)
 			return 0;
 			
-		//perform the k-bottom count
-		int i = 0;
-		int j = 0;
+		//perform the k-bottom count, skipping over the k-mers outside of the overlap
+		int i = nextInRange(positions1, length1, 0, a1, a2);
+		int j = nextInRange(positions2, length2, 0, b1, b2);
 		int intersectCount = 0;
 		int unionCount = 0;
 		while (unionCount<k)
 		{
-			if (array1[i][0]<array2[j][0])
-				i++;
+			if (hashes1[i]<hashes2[j])
+				i = nextInRange(positions1, length1, i+1, a1, a2);
 			else
-			if (array1[i][0]>array2[j][0])
-				j++;
+			if (hashes1[i]>hashes2[j])
+				j = nextInRange(positions2, length2, j+1, b1, b2);
 			else
 			{
 				intersectCount++;
-				i++;
-				j++;
+				i = nextInRange(positions1, length1, i+1, a1, a2);
+				j = nextInRange(positions2, length2, j+1, b1, b2);
 			}
 			
 			unionCount++;
@@ -371,15 +446,16 @@ public final class BottomOverlapSketch
 			int kmerSize = input.readInt();
 			int hashLength = input.readInt();
 
-			int[][] orderedHashes = new int[hashLength][2];
+			int[] hashes = new int[hashLength];
+			int[] positions = new int[hashLength];
 
 			for (int iter = 0; iter < hashLength; iter++)
 			{
-				orderedHashes[iter][0] = input.readInt();
-				orderedHashes[iter][1] = input.readInt();
+				hashes[iter] = input.readInt();
+				positions[iter] = input.readInt();
 			}
 
-			return new BottomOverlapSketch(seqLength, kmerSize, orderedHashes);
+			return new BottomOverlapSketch(seqLength, kmerSize, hashes, positions);
 
 		}
 		catch (EOFException e)
@@ -388,6 +464,39 @@ public final class BottomOverlapSketch
 		}
 	}
 	
+	private static char[] computePositionOrder(int[] positions)
+	{
+		if (positions.length > MAX_INDEXED_SIZE)
+			return null;
+		
+		int[] sortedPositions = positions.clone();
+		int[] order = new int[positions.length];
+		for (int iter = 0; iter < order.length; iter++)
+			order[iter] = iter;
+		
+		IntArrays.radixSort(sortedPositions, order);
+		
+		char[] positionOrder = new char[order.length];
+		for (int iter = 0; iter < order.length; iter++)
+			positionOrder[iter] = (char) order[iter];
+		
+		return positionOrder;
+	}
+
+	private static int nextInRange(int[] positions, int length, int index, int lower, int upper)
+	{
+		while (index < length && (positions[index] < lower || positions[index] > upper))
+			index++;
+		
+		return index;
+	}
+
+	private static double reject(MatchData matchData, MatchData.Rejection rejection)
+	{
+		matchData.rejection = rejection;
+		return 0.0;
+	}
+
 	public static double jaccardToIdentity(double score, int kmerSize)
 	{
 		double d = -1.0/(double)kmerSize*Math.log(2.0*score/(1.0+score));
@@ -396,10 +505,17 @@ public final class BottomOverlapSketch
 
 	private static void recordMatchingKmers(
 			MatchData matchData, 
-			int[][] seq1KmerHashes, 
-			int[][] seq2KmerHashes,
+			SketchWindow window1,
+			SketchWindow window2,
 			int repeat)
 	{
+		int[] hashes1 = window1.hashes;
+		int[] positions1 = window1.positions;
+		int length1 = window1.length;
+		int[] hashes2 = window2.hashes;
+		int[] positions2 = window2.positions;
+		int length2 = window2.length;
+		
 		// init the loop storage
 		int hash1;
 		int hash2;
@@ -424,16 +540,16 @@ public final class BottomOverlapSketch
 		// perform merge operation to get the shift and the kmer count
 		while (true)
 		{
-			if (i1>=seq1KmerHashes.length)
+			if (i1>=length1)
 				break;
-			if (i2>=seq2KmerHashes.length)
+			if (i2>=length2)
 				break;
 			
 			// get the values in the array
-			hash1 = seq1KmerHashes[i1][0];
-			pos1 = seq1KmerHashes[i1][1];
-			hash2 = seq2KmerHashes[i2][0];
-			pos2 = seq2KmerHashes[i2][1];
+			hash1 = hashes1[i1];
+			pos1 = positions1[i1];
+			hash2 = hashes2[i2];
+			pos2 = positions2[i2];
 
 			if (hash1 < hash2 || pos1 < valid1Lower || pos1 >= valid1Upper)
 				i1++;
@@ -459,47 +575,51 @@ public final class BottomOverlapSketch
 					//move the index to last point of same hash
 					int i1Last = i1;
 					int i1Try = i1+1;
-					if (i1Try<seq1KmerHashes.length)
+					if (i1Try<length1)
 					{
-						int hash1Try = seq1KmerHashes[i1Try][0];
-						int pos1Try = seq1KmerHashes[i1Try][1];
+						int hash1Try = hashes1[i1Try];
+						int pos1Try = positions1[i1Try];
 						while((hash1Try == hash1 && pos1Try >= valid1Lower && pos1Try < valid1Upper))
 						{
 							i1Last = i1Try;
 
 							i1Try++;
-							if (i1Try>=seq1KmerHashes.length)
+							if (i1Try>=length1)
 								break;
 							
-							hash1Try = seq1KmerHashes[i1Try][0];
-							pos1Try = seq1KmerHashes[i1Try][1];
+							hash1Try = hashes1[i1Try];
+							pos1Try = positions1[i1Try];
 						}
 					}
 
 					//move the index to last point of same hash
 					int i2Last = i2;
 					int i2Try = i2+1;
-					if (i2Try<seq2KmerHashes.length)
+					if (i2Try<length2)
 					{
-						int hash2Try = seq2KmerHashes[i2Try][0];
-						int pos2Try = seq2KmerHashes[i2Try][1];
+						int hash2Try = hashes2[i2Try];
+						int pos2Try = positions2[i2Try];
 						while((hash2Try == hash2 && pos2Try >= valid2Lower && pos2Try < valid2Upper))
 						{
 							i2Last = i2Try;
 							i2Try++;
-							if (i2Try>=seq2KmerHashes.length)
+							if (i2Try>=length2)
 								break;
 
-							hash2Try = seq2KmerHashes[i2Try][0];
-							pos2Try = seq2KmerHashes[i2Try][1];
+							hash2Try = hashes2[i2Try];
+							pos2Try = positions2[i2Try];
 						}
 					}
 
+					//nothing is out of range in the first pass, so it counts every shared k-mer
+					if (repeat == 0)
+						matchData.numShared += Math.max(i1Last - i1, i2Last - i2) + 1;
+					
 					//store the match and update the counters
 					if (i1!=i1Last || i2!=i2Last)
 					{		
-						int pos1New =  seq1KmerHashes[i1Last][1];
-						int pos2New =  seq2KmerHashes[i2Last][1];
+						int pos1New =  positions1[i1Last];
+						int pos2New =  positions2[i2Last];
 						matchData.recordMatch(pos1New, pos2New, pos2New-pos1New);
 						i1 = i1Last+1;
 						i2 = i2Last+1;
@@ -515,47 +635,121 @@ public final class BottomOverlapSketch
 		}
 	}
 
-	private BottomOverlapSketch(int seqLength, int kmerSize, int[][] orderedHashes)
+	private BottomOverlapSketch(int seqLength, int kmerSize, int[] hashes, int[] positions)
 	{
 		this.seqLength = seqLength;
-		this.orderedHashes = orderedHashes;
+		this.hashes = hashes;
+		this.positions = positions;
+		this.positionOrder = computePositionOrder(positions);
 		this.kmerSize = kmerSize;
 	}
 
-	public BottomOverlapSketch(String seq, int kmerSize, int sketchSize, boolean doReverseCompliment) throws ZeroNGramsFoundException
+	public BottomOverlapSketch(CharSequence seq, int kmerSize, int sketchSize, boolean doReverseCompliment) throws ZeroNGramsFoundException
 	{
 		this.kmerSize = kmerSize;
 		this.seqLength = seq.length() - kmerSize + 1;
 		
 		if (this.seqLength<=0)
-			throw new ZeroNGramsFoundException("Sequence length must be greater or equal to n-gram size "+kmerSize+".", seq);
+			throw new ZeroNGramsFoundException("Sequence length must be greater or equal to n-gram size "+kmerSize+".", seq.toString());
 		
 		// compute just direct hash of sequence
-		int[] hashes = HashUtils.computeSequenceHashes(seq, kmerSize, doReverseCompliment);
-
-		int[] perm = new int[hashes.length];
+		int[] kmerPositions = new int[this.seqLength];
+		int[] kmerHashes = HashUtils.computeOrientedSequenceHashes(seq, kmerSize, doReverseCompliment, kmerPositions);
+		
+		if (kmerHashes.length == 0)
+			throw new ZeroNGramsFoundException("Found zero valid n-grams in the string.", seq.toString());
 
-		//init the array
-		for (int iter = 0; iter < hashes.length; iter++)
-			perm[iter] = iter;
+		//keep the smallest hashes, ties in position order
+		BottomKSelector selector = new BottomKSelector(sketchSize);
+		for (int iter = 0; iter < kmerHashes.length; iter++)
+			selector.offer(kmerHashes[iter], kmerPositions[iter]);
+		
+		//allocate the memory
+		this.hashes = new int[selector.size()];
+		this.positions = new int[selector.size()];
+		selector.drainSorted(this.hashes, this.positions);
+		this.positionOrder = computePositionOrder(this.positions);
+	}
+	
+	/**
+	 * @param selector
+	 *            the bottom k-mers of seq, the selector is emptied
+	 */
+	static BottomOverlapSketch fromBottomKmers(CharSequence seq, int kmerSize, BottomKSelector selector) throws ZeroNGramsFoundException
+	{
+		int seqLength = seq.length() - kmerSize + 1;
 		
-		//sort the array
-		IntArrays.radixSortIndirect(perm, hashes, true);
+		if (seqLength<=0)
+			throw new ZeroNGramsFoundException("Sequence length must be greater or equal to n-gram size "+kmerSize+".", seq.toString());
+		if (selector.size() == 0)
+			throw new ZeroNGramsFoundException("Found zero valid n-grams in the string.", seq.toString());
 		
-		//sketchSize = (int)Math.round(0.25*(double)this.seqLength);
+		int[] hashes = new int[selector.size()];
+		int[] positions = new int[selector.size()];
+		selector.drainSorted(hashes, positions);
+		
+		return new BottomOverlapSketch(seqLength, kmerSize, hashes, positions);
+	}
 
-		//find the largest storage value
-		int k = Math.min(sketchSize, hashes.length);
+	/**
+	 * Points the window at the k-mers with positions in [lower, upper], in hash order. If the index finds the window
+	 * to be a small part of the sketch, the k-mers are copied and a k-mer of the same hash that is outside the window
+	 * is replaced by a marker with position -1, so that a merge ends its runs of equal hashes where it would on the
+	 * whole sketch. Otherwise the window is the whole sketch, and the merges skip the k-mers outside the window.
+	 */
+	private void copyWindow(int lower, int upper, SketchWindow window)
+	{
+		if (this.positionOrder == null || upper < lower)
+		{
+			window.wrap(this.hashes, this.positions);
+			return;
+		}
 		
-		//allocate the memory
-		this.orderedHashes = new int[k][2];
+		int start = lowerBound(lower);
+		int size = lowerBound(upper + 1) - start;
+		if (size * MAX_WINDOW_FRACTION > this.hashes.length)
+		{
+			window.wrap(this.hashes, this.positions);
+			return;
+		}
+		
+		//entry indices are in hash order
+		int[] order = window.startCopy(size);
+		for (int iter = 0; iter < size; iter++)
+			order[iter] = this.positionOrder[start + iter];
+		Arrays.sort(order, 0, size);
+		
+		for (int iter = 0; iter < size; iter++)
+		{
+			int index = order[iter];
+			int hash = this.hashes[index];
+			if (iter > 0 && index != order[iter - 1] + 1 && hash == this.hashes[order[iter - 1]])
+				window.add(hash, -1);
+			
+			window.add(hash, this.positions[index]);
+		}
+	}
 
-		for (int iter = 0; iter < this.orderedHashes.length; iter++)
+	/**
+	 * @return the number of k-mers with positions in [lower, upper]
+	 */
+	private int countInRange(int lower, int upper)
+	{
+		if (upper < lower)
+			return 0;
+		
+		if (this.positionOrder != null)
+			return lowerBound(upper + 1) - lowerBound(lower);
+		
+		int count = 0;
+		for (int i=0; i<this.positions.length; i++)
 		{
-			int index = perm[iter];
-			this.orderedHashes[iter][0] = hashes[index];
-			this.orderedHashes[iter][1] = index;
+			int pos = this.positions[i];
+			if (pos >= lower && pos <= upper)
+				count++;
 		}
+		
+		return count;
 	}
 
 	public byte[] getAsByteArray()
@@ -569,10 +763,10 @@ public final class BottomOverlapSketch
 			dos.writeInt(this.kmerSize);
 			dos.writeInt(size());
 			
-			for (int iter = 0; iter < this.orderedHashes.length; iter++)
+			for (int iter = 0; iter < this.hashes.length; iter++)
 			{
-				dos.writeInt(this.orderedHashes[iter][0]);
-				dos.writeInt(this.orderedHashes[iter][1]);
+				dos.writeInt(this.hashes[iter]);
+				dos.writeInt(this.positions[iter]);
 			}
 
 			dos.flush();
@@ -586,56 +780,190 @@ public final class BottomOverlapSketch
 	
 	public int getHash(int index)
 	{
-		return this.orderedHashes[index][0];
+		return this.hashes[index];
 	}
 	
-	public OverlapInfo getOverlapInfo(BottomOverlapSketch toSequence, double maxShiftPercent)
+	/**
+	 * Computes the overlap, keeping all the intermediate and final results in the reusable match data. The median
+	 * shift, the edges and the k-bottom Jaccard use its storage instead of temporary arrays, so once the match data has
+	 * grown to the sketch sizes the call itself does not allocate.
+	 * 
+	 * @return the identity score of the overlap, or 0 if no overlap was found
+	 */
+	public double computeOverlap(BottomOverlapSketch toSequence, double maxShiftPercent, MatchData matchData)
+	{
+		return computeOverlap(toSequence, maxShiftPercent, 0.0, matchData);
+	}
+	
+	/**
+	 * Same as {@link #computeOverlap(BottomOverlapSketch, double, MatchData)}, but gives up as soon as the identity
+	 * score can no longer reach minScore. The shared k-mers counted by the first merge bound both the matches available
+	 * to the edge estimate, and the intersection of the final Jaccard estimate. The step that gave up is kept in the
+	 * match data.
+	 * 
+	 * @return the identity score of the overlap, or 0 if no overlap was found or it was rejected early
+	 */
+	public double computeOverlap(BottomOverlapSketch toSequence, double maxShiftPercent, double minScore, MatchData matchData)
 	{
 		if (this.kmerSize!=toSequence.kmerSize)
 			throw new SketchRuntimeException("Sketch k-mer size does not match between the two sequences.");
 		
-		//allocate the memory for the search
-		MatchData matchData = new MatchData(this, toSequence, maxShiftPercent);
+		//prepare the memory for the search
+		matchData.reset(this, toSequence, maxShiftPercent);
+
+		SketchWindow window1 = matchData.window1;
+		SketchWindow window2 = matchData.window2;
 
 		//get the initial matches
-		recordMatchingKmers(matchData, this.orderedHashes, toSequence.orderedHashes, 0);
+		window1.wrap(this.hashes, this.positions);
+		window2.wrap(toSequence.hashes, toSequence.positions);
+		recordMatchingKmers(matchData, window1, window2, 0);
 		//System.out.println(matchData.matchesToString());
-		if (matchData.isEmpty())
-			return OverlapInfo.EMPTY;
+		if (matchData.numShared < MatchData.MIN_EDGE_MATCHES)
+			return reject(matchData, MatchData.Rejection.SHARED_KMERS);
 
 		//get matches again, but now in a better region
-		recordMatchingKmers(matchData, this.orderedHashes, toSequence.orderedHashes, 1);
+		copyWindow(matchData.valid1Lower(), matchData.valid1Upper()-1, window1);
+		toSequence.copyWindow(matchData.valid2Lower(), matchData.valid2Upper()-1, window2);
+		recordMatchingKmers(matchData, window1, window2, 1);
 
 		if (matchData.isEmpty())
-			return OverlapInfo.EMPTY;
+			return reject(matchData, MatchData.Rejection.SHIFTS);
 
 		matchData.optimizeShifts();
 			
 		if (matchData.isEmpty())
-			return OverlapInfo.EMPTY;
+			return reject(matchData, MatchData.Rejection.SHIFTS);
 
 		//get the edge data
-		EdgeData edgeData = matchData.computeEdges();
+		if (!matchData.computeEdges())
+			return reject(matchData, MatchData.Rejection.SHIFTS);
 		
-		if (edgeData==null)
-			return OverlapInfo.EMPTY;
+		//get k of the bottom-k sketches inside the overlap
+		int k = Math.min(
+				countInRange(matchData.edgeA1, matchData.edgeA2), 
+				toSequence.countInRange(matchData.edgeB1, matchData.edgeB2));
+		
+		//no more than the shared k-mers can be in the intersection
+		if (k > 0 && matchData.numShared < k && jaccardToIdentity((double)matchData.numShared/(double)k, this.kmerSize) < minScore)
+			return reject(matchData, MatchData.Rejection.JACCARD_BOUND);
 		
 		//compute the jaccard score using bottom-k sketching
-		double score = computeKBottomSketchJaccard(this.orderedHashes, toSequence.orderedHashes, matchData.getMedianShift(), matchData.getAbsMaxShift(), edgeData.a1, edgeData.a2, edgeData.b1, edgeData.b2);
+		copyWindow(matchData.edgeA1, matchData.edgeA2, window1);
+		toSequence.copyWindow(matchData.edgeB1, matchData.edgeB2, window2);
+		double score = computeKBottomSketchJaccard(window1, window2, k, matchData.edgeA1, matchData.edgeA2, matchData.edgeB1, matchData.edgeB2);
 		score = jaccardToIdentity(score, this.kmerSize);
 		
-		double rawScore = (double)edgeData.count;
+		matchData.score = score;
+		matchData.hasOverlap = true;
+		if (score < minScore)
+			matchData.rejection = MatchData.Rejection.SCORE;
+		
+		return score;
+	}
+
+	/**
+	 * Places the overlap from the median shift of the first merge only, without refining it or estimating its score.
+	 * The overlap spans the whole range shared by the two sequences at that shift.
+	 * 
+	 * @param score
+	 *            the identity score reported for the overlap
+	 * @return false if there are too few shared k-mers to place the overlap
+	 */
+	public boolean computeCoarseOverlap(BottomOverlapSketch toSequence, double maxShiftPercent, double score, MatchData matchData)
+	{
+		if (this.kmerSize!=toSequence.kmerSize)
+			throw new SketchRuntimeException("Sketch k-mer size does not match between the two sequences.");
+		
+		matchData.reset(this, toSequence, maxShiftPercent);
+		
+		matchData.window1.wrap(this.hashes, this.positions);
+		matchData.window2.wrap(toSequence.hashes, toSequence.positions);
+		recordMatchingKmers(matchData, matchData.window1, matchData.window2, 0);
+		if (matchData.numShared < MatchData.MIN_EDGE_MATCHES)
+		{
+			reject(matchData, MatchData.Rejection.SHARED_KMERS);
+			return false;
+		}
+		
+		int shift = matchData.getMedianShift();
+		matchData.edgeA1 = Math.max(0, -shift);
+		matchData.edgeA2 = Math.min(this.seqLength, toSequence.seqLength - shift) - 1;
+		matchData.edgeB1 = matchData.edgeA1 + shift;
+		matchData.edgeB2 = matchData.edgeA2 + shift;
+		matchData.edgeCount = matchData.size();
+		matchData.score = score;
+		matchData.hasOverlap = true;
+		
+		return true;
+	}
+
+	/**
+	 * Convenience version of {@link #computeOverlap(BottomOverlapSketch, double, MatchData)} that allocates its own
+	 * match data, for callers that score a single pair.
+	 */
+	public OverlapInfo getOverlapInfo(BottomOverlapSketch toSequence, double maxShiftPercent)
+	{
+		//allocate the memory for the search
+		MatchData matchData = new MatchData(this, toSequence, maxShiftPercent);
+		
+		computeOverlap(toSequence, maxShiftPercent, matchData);
 		
-		return new OverlapInfo(score, rawScore, edgeData.a1, edgeData.a2, edgeData.b1, edgeData.b2);
+		return matchData.getOverlapInfo();
 	}
 	
+	/**
+	 * @return the index into {@link #positionOrder} of the first k-mer with position &gt;= position
+	 */
+	private int lowerBound(int position)
+	{
+		int low = 0;
+		int high = this.positionOrder.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (this.positions[this.positionOrder[mid]] < position)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		
+		return low;
+	}
+
 	public int getSequenceLength()
 	{
 		return this.seqLength;
 	}
+	
+	/**
+	 * Only valid for sketches of canonical k-mers, which both strands share at mirrored positions and with the opposite
+	 * strand bit, see {@link HashUtils#computeOrientedSequenceHashes(CharSequence, int, boolean, int[])}.
+	 * 
+	 * @return the sketch of the reverse compliment of the sequence
+	 */
+	public BottomOverlapSketch mirror()
+	{
+		//flipping the strand bit reorders the k-mers, so sort them again
+		long[] entries = new long[this.hashes.length];
+		for (int iter = 0; iter < entries.length; iter++)
+			entries[iter] = ((long) (this.hashes[iter] ^ 1) << 32) | (this.seqLength - 1 - this.positions[iter]);
+		
+		Arrays.sort(entries);
+		
+		int[] mirroredHashes = new int[entries.length];
+		int[] mirroredPositions = new int[entries.length];
+		for (int iter = 0; iter < entries.length; iter++)
+		{
+			mirroredHashes[iter] = (int) (entries[iter] >>> 32);
+			mirroredPositions[iter] = (int) entries[iter];
+		}
+		
+		return new BottomOverlapSketch(this.seqLength, this.kmerSize, mirroredHashes, mirroredPositions);
+	}
 
 	public int size()
 	{
-		return this.orderedHashes.length;
+		return this.hashes.length;
 	}
 }
@@ -38,16 +38,19 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.google.common.hash.BloomFilter;
 
 import edu.umd.marbl.mhap.impl.MhapRuntimeException;
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
 
 public final class FrequencyCounts
 {
 	private final double filterCutoff;
+	private final long fileFingerprint;
 	private final Map<Long,Double> fractionCounts;
 	private final Set<Integer> kmerSizes;
 	private final double maxIdfValue;
@@ -84,6 +87,9 @@ public final class FrequencyCounts
 
 		//the max value observed in the list
 		AtomicReference<Double> maxValue = new AtomicReference<Double>(Double.NEGATIVE_INFINITY);
+		
+		//order independent sum over the entries, since the lines are parsed in parallel
+		LongAdder fileFingerprint = new LongAdder();
 
 		//read in the first line to generate the bloom filter
 		String line = bf.readLine();
@@ -168,9 +174,16 @@ public final class FrequencyCounts
 					
 					long[] hash = HashUtils.computeSequenceHashesLong(str[0], str[0].length(), 0, doReverseCompliment);
 					
+					//k-mers with ambiguous bases cannot occur in the sketches
+					if (hash.length == 0)
+						return;
+					
+					fileFingerprint.add(HashCommon.mix(hash[0]));
+					
 					if (str.length >= 2)
 					{
 						double percent = Double.parseDouble(str[1]);
+						fileFingerprint.add(HashCommon.mix(hash[0] ^ Double.doubleToLongBits(percent)));
 						
 						// if greater, add to hashset
 						if (percent >= filterCutoff)
@@ -218,6 +231,7 @@ public final class FrequencyCounts
 		validMap.trim();
 	
 		this.validMers = validMers;
+		this.fileFingerprint = fileFingerprint.sum();
 		this.fractionCounts = validMap;
 		this.filterCutoff = filterCutoff;
 		this.offset = offset;
@@ -237,6 +251,22 @@ public final class FrequencyCounts
 		return val;
 	}
 	
+	/**
+	 * @return a fingerprint of the filter file entries and of the weighting settings, equal for filters that weigh
+	 *         every k-mer the same
+	 */
+	public long getFingerprint()
+	{
+		long fingerprint = this.fileFingerprint;
+		fingerprint = 31L * fingerprint + Double.doubleToLongBits(this.filterCutoff);
+		fingerprint = 31L * fingerprint + Double.doubleToLongBits(this.offset);
+		fingerprint = 31L * fingerprint + Double.doubleToLongBits(this.range);
+		fingerprint = 31L * fingerprint + this.removeUnique;
+		fingerprint = 31L * fingerprint + (this.noTf ? 1L : 0L);
+		
+		return fingerprint;
+	}
+	
 	public double getFilterCutoff()
 	{
 		return this.filterCutoff;
@@ -0,0 +1,123 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+/**
+ * Computes the MinHash sketch and the ordered sketch of a sequence with a single pass over its bases. The k-mers of
+ * both sizes are rolled together, the MinHash k-mers are collected for counting, and the ordered k-mers go straight
+ * into a bounded bottom-k selection. The sketches are identical to the ones built by the separate constructors.
+ * Optionally, the sketches of the reverse compliment strand are computed in the same pass, from the reverse words and
+ * the mirrored positions of the k-mers.
+ */
+public final class FusedSketcher
+{
+	private final MinHashSketch minHashSketch;
+	private final BottomOverlapSketch orderedSketch;
+	private final MinHashSketch reverseMinHashSketch;
+	private final BottomOverlapSketch reverseOrderedSketch;
+
+	/**
+	 * @return true if both k-mer sizes can be rolled, otherwise the sketches must be built separately
+	 */
+	public static boolean canFuse(int kmerSize, int orderedKmerSize)
+	{
+		return !HashUtils.LEGACY_KMER_HASH && kmerSize <= HashUtils.MAX_ROLLING_KMER_SIZE
+				&& orderedKmerSize <= HashUtils.MAX_ROLLING_KMER_SIZE;
+	}
+
+	public FusedSketcher(CharSequence seq, int kmerSize, int numHashes, FrequencyCounts kmerFilter, double repeatWeight, int minHashMode,
+			int orderedKmerSize, int orderedSketchSize, boolean doReverseCompliment) throws ZeroNGramsFoundException
+	{
+		this(seq, kmerSize, numHashes, kmerFilter, repeatWeight, minHashMode, orderedKmerSize, orderedSketchSize, doReverseCompliment, false);
+	}
+
+	/**
+	 * @param withReverseStrand
+	 *            also compute the sketches of the reverse compliment of seq
+	 */
+	public FusedSketcher(CharSequence seq, int kmerSize, int numHashes, FrequencyCounts kmerFilter, double repeatWeight, int minHashMode,
+			int orderedKmerSize, int orderedSketchSize, boolean doReverseCompliment, boolean withReverseStrand) throws ZeroNGramsFoundException
+	{
+		if (!canFuse(kmerSize, orderedKmerSize))
+			throw new SketchRuntimeException("K-mer sizes cannot be rolled together, build the sketches separately.");
+
+		int numberNGrams = seq.length() - kmerSize + 1;
+		if (numberNGrams < 1)
+			throw new ZeroNGramsFoundException("N-gram size bigger than string length.", seq.toString());
+
+		//the reverse strand k-mers are stored after the forward ones
+		long[] kmerHashes = MinHashSketch.kmerHashBuffer(withReverseStrand ? 2 * numberNGrams : numberNGrams);
+		BottomKSelector selector = new BottomKSelector(orderedSketchSize);
+		BottomKSelector reverseSelector = withReverseStrand ? new BottomKSelector(orderedSketchSize) : null;
+		int numberKmers = HashUtils.computeFusedRollingHashes(seq, kmerSize, orderedKmerSize, doReverseCompliment, kmerHashes, selector,
+				withReverseStrand ? numberNGrams : -1, reverseSelector);
+
+		this.minHashSketch = MinHashSketch.fromKmerHashes(seq, kmerHashes, 0, numberKmers, numHashes, kmerFilter, repeatWeight, minHashMode);
+		this.orderedSketch = BottomOverlapSketch.fromBottomKmers(seq, orderedKmerSize, selector);
+
+		if (withReverseStrand)
+		{
+			this.reverseMinHashSketch = MinHashSketch.fromKmerHashes(seq, kmerHashes, numberNGrams, numberNGrams + numberKmers, numHashes,
+					kmerFilter, repeatWeight, minHashMode);
+			this.reverseOrderedSketch = BottomOverlapSketch.fromBottomKmers(seq, orderedKmerSize, reverseSelector);
+		}
+		else
+		{
+			this.reverseMinHashSketch = null;
+			this.reverseOrderedSketch = null;
+		}
+	}
+
+	public MinHashSketch getMinHashSketch()
+	{
+		return this.minHashSketch;
+	}
+
+	public BottomOverlapSketch getOrderedSketch()
+	{
+		return this.orderedSketch;
+	}
+
+	/**
+	 * @return the MinHash sketch of the reverse compliment strand, or null if it was not computed
+	 */
+	public MinHashSketch getReverseMinHashSketch()
+	{
+		return this.reverseMinHashSketch;
+	}
+
+	/**
+	 * @return the ordered sketch of the reverse compliment strand, or null if it was not computed
+	 */
+	public BottomOverlapSketch getReverseOrderedSketch()
+	{
+		return this.reverseOrderedSketch;
+	}
+}
@@ -28,7 +28,10 @@
  */
 package edu.umd.marbl.mhap.sketch;
 
+import it.unimi.dsi.fastutil.HashCommon;
+
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
@@ -41,6 +44,35 @@ import edu.umd.marbl.mhap.utils.Utils;
 
 public class HashUtils
 {
+	/**
+	 * Hash k-mers of the sequences with Murmur3 over their substrings, as done by older versions. Sketches computed
+	 * with different settings cannot be compared.
+	 */
+	public static boolean LEGACY_KMER_HASH = false;
+	
+	/**
+	 * Largest k-mer that fits a 2-bit encoded long word, larger k-mers always use the legacy hash.
+	 */
+	public static final int MAX_ROLLING_KMER_SIZE = 32;
+	
+	private static final byte[] BASE_CODES = new byte[128];
+	
+	//lowest bit of the 32-bit hash taken from the high half of a long hash
+	private static final long STRAND_BIT = 1L << 32;
+	
+	static
+	{
+		Arrays.fill(BASE_CODES, (byte) -1);
+		BASE_CODES['A'] = 0;
+		BASE_CODES['C'] = 1;
+		BASE_CODES['G'] = 2;
+		BASE_CODES['T'] = 3;
+		BASE_CODES['a'] = 0;
+		BASE_CODES['c'] = 1;
+		BASE_CODES['g'] = 2;
+		BASE_CODES['t'] = 3;
+	}
+	
 	public static long[] computeHashes(String item, int numWords, int seed)
 	{
 		long[] hashes = new long[numWords];
@@ -210,38 +242,249 @@ public class HashUtils
 		return hashes;
 	}
 
-	public final static int[] computeSequenceHashes(final String seq, final int nGramSize, boolean doReverseCompliment)
+	/**
+	 * Rolls the forward and reverse complement 2-bit words of the k-mers across the sequence, and mixes the chosen
+	 * word with a 64-bit finalizer. K-mers overlapping a base other than A, C, G or T are skipped.
+	 * 
+	 * @param markStrand
+	 *            see {@link #computeOrientedSequenceHashes(CharSequence, int, boolean, int[])}
+	 * @return the number of k-mers stored in hashes, and their start positions in positions if it is not null
+	 */
+	private final static int computeRollingHashes(final CharSequence seq, final int nGramSize, final int seed,
+			final boolean doReverseCompliment, final boolean markStrand, final long[] hashes, final int[] positions)
+	{
+		final long mask = nGramSize >= 32 ? -1L : (1L << (2 * nGramSize)) - 1L;
+		final int shift = 2 * (nGramSize - 1);
+		final long seedWord = seedWord(seed);
+	
+		long forward = 0L;
+		long reverse = 0L;
+		int numValid = 0;
+		int count = 0;
+		for (int iter = 0; iter < seq.length(); iter++)
+		{
+			char base = seq.charAt(iter);
+			int code = base < BASE_CODES.length ? BASE_CODES[base] : -1;
+			
+			//restart the window after an ambiguous base
+			if (code < 0)
+			{
+				numValid = 0;
+				forward = 0L;
+				reverse = 0L;
+				continue;
+			}
+			
+			forward = ((forward << 2) | code) & mask;
+			reverse = (reverse >>> 2) | ((long) (3 - code) << shift);
+			
+			if (++numValid < nGramSize)
+				continue;
+			
+			//the numerically smaller word is the lexicographically smaller k-mer
+			long word = forward;
+			if (doReverseCompliment && Long.compareUnsigned(reverse, forward) < 0)
+				word = reverse;
+			
+			hashes[count] = HashCommon.murmurHash3(word ^ seedWord);
+			if (markStrand && doReverseCompliment)
+				hashes[count] = markStrand(hashes[count], Long.compareUnsigned(reverse, forward) < 0);
+			if (positions != null)
+				positions[count] = iter - nGramSize + 1;
+			count++;
+		}
+		
+		return count;
+	}
+
+	/**
+	 * Rolls the k-mers of two sizes over the sequence in a single pass. The hashes are the same as the ones of
+	 * {@link #computeSequenceHashesLong(CharSequence, int, int, boolean)} with a zero seed, and of
+	 * {@link #computeOrientedSequenceHashes(CharSequence, int, boolean, int[])} for the ordered k-mers.
+	 * 
+	 * @param reverseOffset
+	 *            if not negative, the k-mers of the reverse compliment strand are also stored in hashes from this
+	 *            offset, and its ordered k-mers are offered to reverseOrdered with their reverse strand positions
+	 * @return the number of k-mers stored in hashes for each strand, the ordered k-mers are offered to the selector
+	 */
+	final static int computeFusedRollingHashes(final CharSequence seq, final int nGramSize, final int orderedSize,
+			final boolean doReverseCompliment, final long[] hashes, final BottomKSelector ordered, final int reverseOffset,
+			final BottomKSelector reverseOrdered)
 	{
+		final boolean doReverseStrand = reverseOffset >= 0;
+		final long mask = nGramSize >= 32 ? -1L : (1L << (2 * nGramSize)) - 1L;
+		final long orderedMask = orderedSize >= 32 ? -1L : (1L << (2 * orderedSize)) - 1L;
+		final long seedWord = seedWord(0);
+	
+		//both words hold the last 32 bases, the k-mers are their low (forward) or high (reverse) bits
+		long forward = 0L;
+		long reverse = 0L;
+		int numValid = 0;
+		int count = 0;
+		for (int iter = 0; iter < seq.length(); iter++)
+		{
+			char base = seq.charAt(iter);
+			int code = base < BASE_CODES.length ? BASE_CODES[base] : -1;
+			
+			//restart the windows after an ambiguous base
+			if (code < 0)
+			{
+				numValid = 0;
+				forward = 0L;
+				reverse = 0L;
+				continue;
+			}
+			
+			forward = (forward << 2) | code;
+			reverse = (reverse >>> 2) | ((long) (3 - code) << 62);
+			numValid++;
+			
+			//on the reverse strand the k-mer is the reverse word, unless canonical k-mers are used
+			if (numValid >= nGramSize)
+			{
+				long word = forward & mask;
+				long reverseWord = reverse >>> (64 - 2 * nGramSize);
+				if (doReverseCompliment && Long.compareUnsigned(reverseWord, word) < 0)
+					word = reverseWord;
+				
+				long hash = HashCommon.murmurHash3(word ^ seedWord);
+				if (doReverseStrand)
+					hashes[reverseOffset + count] = doReverseCompliment ? hash : HashCommon.murmurHash3(reverseWord ^ seedWord);
+				
+				hashes[count++] = hash;
+			}
+			
+			if (numValid >= orderedSize)
+			{
+				long forwardWord = forward & orderedMask;
+				long reverseWord = reverse >>> (64 - 2 * orderedSize);
+				long word = forwardWord;
+				if (doReverseCompliment && Long.compareUnsigned(reverseWord, forwardWord) < 0)
+					word = reverseWord;
+				
+				long hash = HashCommon.murmurHash3(word ^ seedWord);
+				if (doReverseStrand)
+				{
+					//the canonical k-mer of the reverse strand is taken from the other strand of the forward one
+					long reverseHash;
+					if (doReverseCompliment)
+						reverseHash = markStrand(hash, Long.compareUnsigned(forwardWord, reverseWord) < 0);
+					else
+						reverseHash = HashCommon.murmurHash3(reverseWord ^ seedWord);
+					
+					//the k-mer ending at iter starts at length-1-iter on the reverse strand
+					reverseOrdered.offer((int) (reverseHash >>> 32), seq.length() - 1 - iter);
+				}
+				
+				if (doReverseCompliment)
+					hash = markStrand(hash, Long.compareUnsigned(reverseWord, forwardWord) < 0);
+				
+				ordered.offer((int) (hash >>> 32), iter - orderedSize + 1);
+			}
+		}
+		
+		return count;
+	}
+
+	public final static int[] computeSequenceHashes(final CharSequence seq, final int nGramSize, boolean doReverseCompliment)
+	{
+		return computeSequenceHashes(seq, nGramSize, doReverseCompliment, null);
+	}
+
+	/**
+	 * @param positions
+	 *            if not null, receives the start position of every returned hash, must fit all the k-mers of seq
+	 */
+	public final static int[] computeSequenceHashes(final CharSequence seq, final int nGramSize, boolean doReverseCompliment, int[] positions)
+	{
+		return computeSequenceHashes(seq, nGramSize, doReverseCompliment, false, positions);
+	}
+	
+	/**
+	 * Same as {@link #computeSequenceHashes(CharSequence, int, boolean, int[])}, except that with reverse compliment
+	 * the lowest bit of a hash is replaced by the strand of the canonical k-mer. Both strands of a sequence then keep
+	 * the same k-mers, at mirrored positions and with flipped strand bits, while a match of two hashes still means the
+	 * k-mers are on the same strand.
+	 */
+	public final static int[] computeOrientedSequenceHashes(final CharSequence seq, final int nGramSize, boolean doReverseCompliment, int[] positions)
+	{
+		return computeSequenceHashes(seq, nGramSize, doReverseCompliment, true, positions);
+	}
+	
+	private final static int[] computeSequenceHashes(final CharSequence seq, final int nGramSize, boolean doReverseCompliment, boolean markStrand, int[] positions)
+	{
+		int numberNGrams = Math.max(0, seq.length() - nGramSize + 1);
+		
+		if (!LEGACY_KMER_HASH && nGramSize <= MAX_ROLLING_KMER_SIZE)
+		{
+			long[] longHashes = new long[numberNGrams];
+			int count = computeRollingHashes(seq, nGramSize, 0, doReverseCompliment, markStrand, longHashes, positions);
+			
+			int[] hashes = new int[count];
+			for (int iter = 0; iter < count; iter++)
+				hashes[iter] = (int) (longHashes[iter] >>> 32);
+			
+			return hashes;
+		}
+		
 		HashFunction hf = Hashing.murmur3_32(0);
+		String seqString = seq.toString();
 	
-		int[] hashes = new int[seq.length() - nGramSize + 1];
+		int[] hashes = new int[numberNGrams];
 		for (int iter = 0; iter < hashes.length; iter++)
 		{
-			String str = seq.substring(iter, iter + nGramSize);
+			String str = seqString.substring(iter, iter + nGramSize);
 			
 			String strReverse = null;
+			boolean reversed = false;
 			if (doReverseCompliment)
 			{
 				strReverse  = Utils.rc(str);
 				if (strReverse.compareTo(str)<0)
+				{
 					str = strReverse;
+					reversed = true;
+				}
 			}
 
 			HashCode hc = hf.newHasher().putUnencodedChars(str).hash();
 			hashes[iter] = hc.asInt();
+			if (markStrand && doReverseCompliment)
+				hashes[iter] = reversed ? hashes[iter] | 1 : hashes[iter] & ~1;
+			
+			if (positions != null)
+				positions[iter] = iter;
 		}
 	
 		return hashes;
 	}
 
-	public final static long[] computeSequenceHashesLong(final String seq, final int nGramSize, final int seed, final boolean doReverseCompliment)
+	public final static long[] computeSequenceHashesLong(final CharSequence seq, final int nGramSize, final int seed, final boolean doReverseCompliment)
+	{
+		long[] hashes = new long[Math.max(0, seq.length() - nGramSize + 1)];
+		int count = computeSequenceHashesLong(seq, nGramSize, seed, doReverseCompliment, hashes);
+		
+		return count < hashes.length ? Arrays.copyOf(hashes, count) : hashes;
+	}
+	
+	/**
+	 * @param hashes
+	 *            receives the hashes, must fit all the k-mers of seq
+	 * @return the number of hashes stored
+	 */
+	public final static int computeSequenceHashesLong(final CharSequence seq, final int nGramSize, final int seed, final boolean doReverseCompliment, final long[] hashes)
 	{
+		int numberNGrams = Math.max(0, seq.length() - nGramSize + 1);
+		
+		if (!LEGACY_KMER_HASH && nGramSize <= MAX_ROLLING_KMER_SIZE)
+			return computeRollingHashes(seq, nGramSize, seed, doReverseCompliment, false, hashes, null);
+		
 		HashFunction hf = Hashing.murmur3_128(seed);
+		String seqString = seq.toString();
 	
-		long[] hashes = new long[seq.length() - nGramSize + 1];
-		for (int iter = 0; iter < hashes.length; iter++)
+		for (int iter = 0; iter < numberNGrams; iter++)
 		{
-			String str = seq.substring(iter, iter + nGramSize);
+			String str = seqString.substring(iter, iter + nGramSize);
 			String strReverse = null;
 			if (doReverseCompliment)
 			{
@@ -254,7 +497,7 @@ public class HashUtils
 			hashes[iter] = hc.asLong();
 		}
 	
-		return hashes;
+		return numberNGrams;
 	}
 	
 	public static double[] randomGuassianVector(int n, int seed)
@@ -304,6 +547,16 @@ public class HashUtils
 		return BasicMath.mult(vec, 1.0/norm);
 	}
 
+	private static long markStrand(long hash, boolean reverse)
+	{
+		return reverse ? hash | STRAND_BIT : hash & ~STRAND_BIT;
+	}
+
+	private static long seedWord(int seed)
+	{
+		return (seed + 1L) * 0x9e3779b97f4a7c15L;
+	}
+
 	private HashUtils()
 	{
 	}
@@ -0,0 +1,110 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+/**
+ * Reusable open-addressed counter of k-mer hashes. The distinct k-mers are kept in the order they were first added,
+ * and only their slots are cleared on reset, so a counter sized for a long read is cheap to reuse for short ones.
+ */
+final class KmerCounts
+{
+	private int[] counts;
+	private long[] keys;
+	private int mask;
+	private int size;
+	private int[] slots;
+
+	public KmerCounts()
+	{
+		this.counts = new int[0];
+		this.keys = new long[0];
+		this.slots = new int[0];
+		this.mask = -1;
+		this.size = 0;
+	}
+
+	public void add(long key)
+	{
+		int slot = (int) HashCommon.mix(key) & this.mask;
+		while (this.counts[slot] != 0)
+		{
+			if (this.keys[slot] == key)
+			{
+				this.counts[slot]++;
+				return;
+			}
+
+			slot = (slot + 1) & this.mask;
+		}
+
+		this.keys[slot] = key;
+		this.counts[slot] = 1;
+		this.slots[this.size++] = slot;
+	}
+
+	public int count(int index)
+	{
+		return this.counts[this.slots[index]];
+	}
+
+	public long key(int index)
+	{
+		return this.keys[this.slots[index]];
+	}
+
+	/**
+	 * Empties the counter, and makes room for the given number of additions.
+	 */
+	public void reset(int maxSize)
+	{
+		for (int iter = 0; iter < this.size; iter++)
+			this.counts[this.slots[iter]] = 0;
+		this.size = 0;
+
+		// keep the load factor at or below 0.5
+		int capacity = HashCommon.arraySize(Math.max(2, maxSize), 0.5f);
+		if (capacity > this.counts.length)
+		{
+			this.counts = new int[capacity];
+			this.keys = new long[capacity];
+		}
+		if (maxSize > this.slots.length)
+			this.slots = new int[maxSize];
+
+		this.mask = capacity - 1;
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+}
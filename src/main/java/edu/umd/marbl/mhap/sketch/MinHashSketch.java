@@ -29,73 +29,99 @@
  */
 package edu.umd.marbl.mhap.sketch;
 
-import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.HashCommon;
 
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Map.Entry;
-
-import edu.umd.marbl.mhap.utils.HitCounter;
 
 public final class MinHashSketch implements Sketch<MinHashSketch>
 {
 	private final int[] minHashes;
+	private final int numBits;
+	private final int numHashes;
+	private final long[] packedHashes;
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 8846482698636860862L;
 	
-	private final static int[] computeNgramMinHashesWeighted(String seq, final int nGramSize, final int numHashes,
-			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
+	/**
+	 * Classic min-hashing, every k-mer is rehashed for each of the min-mers.
+	 */
+	public static final int MODE_CLASSIC = 0;
+	
+	/**
+	 * One permutation hashing, every k-mer is hashed once into one of the min-mer bins, and the empty bins are filled
+	 * with optimal densification.
+	 */
+	public static final int MODE_ONE_PERMUTATION = 1;
+	
+	/**
+	 * Weighted sampling min-hashing, where a k-mer of weight w samples the minimum of w uniform values from a single
+	 * rehash per min-mer, instead of rehashing w times, so the cost does not grow with the weight.
+	 * <p>
+	 * Every min-mer draws fresh values for every k-mer, so the probability that two sketches share a min-mer is the
+	 * probability Jaccard J_P of the weighted k-mer sets. This is not the similarity estimated by
+	 * {@link #MODE_CLASSIC}, whose rehash chain ties the values of a k-mer to its weight. The mode is therefore not a
+	 * drop-in replacement for the classic mode, and score thresholds tuned for one mode are not interchangeable with
+	 * the other. Both agree only when all the weights are 1.
+	 */
+	public static final int MODE_WEIGHTED_SAMPLING = 2;
+	
+	private static final ThreadLocal<long[]> KMER_HASH_BUFFER = ThreadLocal.withInitial(() -> new long[0]);
+	private static final ThreadLocal<KmerCounts> KMER_COUNTS = ThreadLocal.withInitial(() -> new KmerCounts());
+	
+	private final static int[] computeNgramMinHashesWeighted(CharSequence seq, final int nGramSize, final int numHashes,
+			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, int minHashMode) throws ZeroNGramsFoundException
 	{
 		final int numberNGrams = seq.length() - nGramSize + 1;
 	
 		if (numberNGrams < 1)
-			throw new ZeroNGramsFoundException("N-gram size bigger than string length.", seq);
+			throw new ZeroNGramsFoundException("N-gram size bigger than string length.", seq.toString());
 	
 		//if (repeatWeight>=1.0)
 		//	throw new SketchRuntimeException("repeatWeight cannot be >=1.");
 
-		// get the kmer hashes
-		final long[] kmerHashes = HashUtils.computeSequenceHashesLong(seq, nGramSize, 0, doReverseCompliment);
-		
-		//now compute the counts of occurance
-		Long2ObjectLinkedOpenHashMap<HitCounter> hitMap = new Long2ObjectLinkedOpenHashMap<HitCounter>(kmerHashes.length);
-		for (long kmer : kmerHashes)
-		{
-			//do not add unique kmers to the sketch
-			if (kmerFilter!=null && !kmerFilter.keepKmer(kmer))
-				continue;
-			
-			HitCounter counter = hitMap.get(kmer);
-			if (counter==null)
-			{
-				counter = new HitCounter(1);
-				hitMap.put(kmer, counter);
-			}
-			else
-				counter.addHit();
-		}
+		// get the kmer hashes into the scratch buffer of the thread
+		long[] kmerHashes = kmerHashBuffer(numberNGrams);
+		int numberKmers = HashUtils.computeSequenceHashesLong(seq, nGramSize, 0, doReverseCompliment, kmerHashes);
 		
-		//make sure don't create a zero value
-		if (hitMap.isEmpty())
-			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq);
+		return computeMinHashes(seq, kmerHashes, 0, numberKmers, numHashes, kmerFilter, repeatWeight, minHashMode);
+	}
+	
+	/**
+	 * @param kmerHashes
+	 *            the hashes of all the k-mers of seq, in [from, to)
+	 */
+	private final static int[] computeMinHashes(CharSequence seq, final long[] kmerHashes, final int from, final int to, final int numHashes,
+			FrequencyCounts kmerFilter, double repeatWeight, int minHashMode) throws ZeroNGramsFoundException
+	{
+		//count the occurances in the scratch counter of the thread
+		KmerCounts counts = KMER_COUNTS.get();
+		counts.reset(to - from);
+		for (int iter = from; iter < to; iter++)
+			counts.add(kmerHashes[iter]);
 	
 		//allocate the space
 		int[] hashes = new int[Math.max(1,numHashes)];		
 		long[] best = new long[numHashes];
 		Arrays.fill(best, Long.MAX_VALUE);
+		long[] bestKeys = minHashMode==MODE_ONE_PERMUTATION ? new long[numHashes] : null;
 
 		//go through all the k-mers and find the min values
 		int numberValid = 0;
 		
-		for (Entry<Long, HitCounter> kmer : hitMap.entrySet())
+		for (int index = 0; index < counts.size(); index++)
 		{
-			long key = kmer.getKey();
-			int weight = kmer.getValue().count;
+			long key = counts.key(index);
+			int weight = counts.count(index);
+			
+			//do not add unique kmers to the sketch
+			if (kmerFilter!=null && !kmerFilter.keepKmer(key))
+				continue;
 			
 			//original version of MHAP
 			if (repeatWeight<0.0)
@@ -132,6 +158,63 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 			
 			//set the initial shift value
 			long x = key;
+			
+			if (minHashMode==MODE_ONE_PERMUTATION)
+			{
+				//each weighted copy lands in a single bin, picked by the high bits
+				for (int count = 0; count<weight; count++)
+				{
+					x ^= (x << 21);
+					x ^= (x >>> 35);
+					x ^= (x << 4);
+					
+					int bin = (int)(((x >>> 32) * numHashes) >>> 32);
+					if (x < best[bin])
+					{
+						best[bin] = x;
+						bestKeys[bin] = key;
+					}
+				}
+				
+				continue;
+			}
+			
+			if (minHashMode==MODE_WEIGHTED_SAMPLING)
+			{
+				double invWeight = 1.0/(double)weight;
+				for (int word = 0; word < numHashes; word++)
+				{
+					x ^= (x << 21);
+					x ^= (x >>> 35);
+					x ^= (x << 4);
+					
+					//same order as the signed value of the classic mode
+					double u = (double)((x ^ Long.MIN_VALUE) >>> 11) * 0x1.0p-53;
+					
+					if (weight>1)
+					{
+						//the minimum of weight uniforms is at least u/weight, only invert if it can win
+						if (u*invWeight >= Double.longBitsToDouble(best[word]))
+							continue;
+						
+						u = -Math.expm1(Math.log1p(-u)*invWeight);
+					}
+					
+					//not negative, so the bits compare like the double
+					long value = Double.doubleToRawLongBits(u);
+					if (value < best[word])
+					{
+						best[word] = value;
+						if (word%2==0)
+							hashes[word] = (int)key;
+						else
+							hashes[word] = (int)(key>>>32);
+					}
+				}
+				
+				continue;
+			}
+			
 			for (int word = 0; word < numHashes; word++)
 			{
 				for (int count = 0; count<weight; count++)
@@ -154,28 +237,62 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 		}
 		
 		if (numberValid<=0)
-			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq);
+			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq.toString());
+		
+		if (minHashMode==MODE_ONE_PERMUTATION)
+			densify(hashes, best, bestKeys);
 
-		//now combine into super shingles
-		/*
-		HashFunction hf = Hashing.murmur3_32(0);
 		
-		int[] superShingles = new int[numHashes];
-		for (int iter=0; iter<hashes.length; iter++)
+		return hashes;
+	}
+
+	/**
+	 * @return the scratch buffer of the thread for k-mer hashes, with at least the given size
+	 */
+	static long[] kmerHashBuffer(int size)
+	{
+		long[] buffer = KMER_HASH_BUFFER.get();
+		if (buffer.length < size)
 		{
-			int i1 = iter;
-			int i2 = (iter+1)%numHashes;
-			
-			HashCode hc = hf.newHasher().
-					putInt(hashes[i1]).
-					putInt(hashes[i2]).
-					hash();
-			superShingles[iter] = hc.asInt();
+			buffer = new long[size];
+			KMER_HASH_BUFFER.set(buffer);
 		}
-		hashes = superShingles;
-		*/ 
 		
-		return hashes;
+		return buffer;
+	}
+
+	/**
+	 * Fills the empty bins of a one permutation sketch. Each empty bin probes a fixed sequence of bins, the same for
+	 * all sequences, and copies the first one that was filled by a k-mer.
+	 */
+	private final static void densify(int[] hashes, long[] best, long[] bestKeys)
+	{
+		int numHashes = best.length;
+		
+		for (int word = 0; word < numHashes; word++)
+		{
+			long key = bestKeys[word];
+			
+			if (best[word] == Long.MAX_VALUE)
+			{
+				for (long attempt = 1L; ; attempt++)
+				{
+					long h = HashCommon.murmurHash3(((long)word << 32) + attempt);
+					int bin = (int)(((h >>> 32) * numHashes) >>> 32);
+					
+					if (best[bin] != Long.MAX_VALUE)
+					{
+						key = bestKeys[bin];
+						break;
+					}
+				}
+			}
+			
+			if (word%2==0)
+				hashes[word] = (int)key;
+			else
+				hashes[word] = (int)(key>>>32);
+		}
 	}
 
 	public static MinHashSketch fromByteStream(DataInputStream input) throws IOException
@@ -185,6 +302,20 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 			//store the size
 			int hashNum = input.readInt();
 			
+			//negative size marks packed b-bit min-hashes
+			if (hashNum<0)
+			{
+				int numBits = input.readInt();
+				if (!isValidNumBits(numBits))
+					throw new SketchRuntimeException("Invalid number of bits per min-hash "+numBits+".");
+				
+				long[] packedHashes = new long[numPackedWords(-hashNum, numBits)];
+				for (int word=0; word<packedHashes.length; word++)
+					packedHashes[word] = input.readLong();
+				
+				return new MinHashSketch(packedHashes, -hashNum, numBits);
+			}
+			
 			//store the array
 			int[] minHashes = new int[hashNum];
 			for (int hash=0; hash<hashNum; hash++)
@@ -200,23 +331,99 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 		}
 	}
 	
+	private static int numPackedWords(int numHashes, int numBits)
+	{
+		return (int)(((long)numHashes*(long)numBits+63L)/64L);
+	}
+	
 	private MinHashSketch(int[] minHashes)
 	{
 		this.minHashes = minHashes;
+		this.numHashes = minHashes.length;
+		this.numBits = 32;
+		this.packedHashes = null;
+	}
+	
+	private MinHashSketch(long[] packedHashes, int numHashes, int numBits)
+	{
+		this.minHashes = null;
+		this.numHashes = numHashes;
+		this.numBits = numBits;
+		this.packedHashes = packedHashes;
+	}
+	
+	public MinHashSketch(CharSequence str, int nGramSize, int numHashes, boolean doReverseCompliment) throws ZeroNGramsFoundException
+	{
+		this(MinHashSketch.computeNgramMinHashesWeighted(str, nGramSize, numHashes, null, doReverseCompliment, -1.0, MODE_CLASSIC));
+	}
+	
+	public MinHashSketch(CharSequence seq, int nGramSize, int numHashes, FrequencyCounts freqFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
+	{
+		this(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight, MODE_CLASSIC);
+	}
+	
+	public MinHashSketch(CharSequence seq, int nGramSize, int numHashes, FrequencyCounts freqFilter, boolean doReverseCompliment, double repeatWeight, int minHashMode) throws ZeroNGramsFoundException
+	{
+		this(MinHashSketch.computeNgramMinHashesWeighted(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight, minHashMode));
+	}
+	
+	/**
+	 * @param kmerHashes
+	 *            the hashes of all the k-mers of seq in [from, to), as computed by {@link HashUtils}
+	 */
+	static MinHashSketch fromKmerHashes(CharSequence seq, long[] kmerHashes, int from, int to, int numHashes, FrequencyCounts freqFilter, double repeatWeight, int minHashMode) throws ZeroNGramsFoundException
+	{
+		return new MinHashSketch(MinHashSketch.computeMinHashes(seq, kmerHashes, from, to, numHashes, freqFilter, repeatWeight, minHashMode));
 	}
 	
-	public MinHashSketch(String str, int nGramSize, int numHashes, boolean doReverseCompliment) throws ZeroNGramsFoundException
+	public static boolean isValidMode(int minHashMode)
 	{
-		this.minHashes = MinHashSketch.computeNgramMinHashesWeighted(str, nGramSize, numHashes, null, doReverseCompliment, -1.0);
+		return minHashMode==MODE_CLASSIC || minHashMode==MODE_ONE_PERMUTATION || minHashMode==MODE_WEIGHTED_SAMPLING;
 	}
 	
-	public MinHashSketch(String seq, int nGramSize, int numHashes, FrequencyCounts freqFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
+	public static boolean isValidNumBits(int numBits)
+	{
+		return numBits>0 && numBits<=32 && 64%numBits==0;
+	}
+
+	/**
+	 * Combines consecutive min-hashes into a super-shingle, so that two sketches share the key of a band only if they
+	 * agree on all of its min-hashes.
+	 * 
+	 * @param band
+	 *            the band index, covering the min-hashes [band*bandSize, (band+1)*bandSize)
+	 * @param bandSize
+	 *            the number of min-hashes in a band, a size of 1 returns the min-hash itself
+	 * @return the key of the band
+	 */
+	public int getBandKey(int band, int bandSize)
 	{
-		this.minHashes = MinHashSketch.computeNgramMinHashesWeighted(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight);
+		int offset = band * bandSize;
+		if (bandSize == 1)
+			return getMinHash(offset);
+		
+		long key = 0L;
+		for (int iter = offset; iter < offset + bandSize; iter++)
+			key = HashCommon.mix(key * 0x9E3779B97F4A7C15L + (getMinHash(iter) & 0xffffffffL));
+		
+		return (int) (key ^ (key >>> 32));
 	}
 
 	public byte[] getAsByteArray()
 	{
+		if (this.packedHashes!=null)
+		{
+			ByteBuffer bb = ByteBuffer.allocate(8+8*this.packedHashes.length);
+			
+			//store the negative size, followed by the bits per min-hash
+			bb.putInt(-this.numHashes);
+			bb.putInt(this.numBits);
+			for (int word=0; word<this.packedHashes.length; word++)
+				bb.putLong(this.packedHashes[word]);
+			
+			return bb.array();
+		}
+		
 		ByteBuffer bb = ByteBuffer.allocate(4*(1+this.minHashes.length));
 		
 		//store the size
@@ -229,31 +436,109 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 		return bb.array();
 	}
 	
+	/**
+	 * @param index
+	 *            the hash function
+	 * @return the min-hash, reduced to its lowest {@link #getNumBits()} bits
+	 */
+	public final int getMinHash(int index)
+	{
+		if (this.minHashes!=null)
+			return this.minHashes[index];
+		
+		long bitIndex = (long)index*(long)this.numBits;
+		long word = this.packedHashes[(int)(bitIndex>>>6)];
+		
+		return (int)((word >>> (bitIndex & 63L)) & ((1L<<this.numBits)-1L));
+	}
+	
+	/**
+	 * @return the min-hashes, unpacked into a new array if the sketch stores b-bit min-hashes
+	 */
 	public final int[] getMinHashArray()
 	{
-		return this.minHashes;
+		if (this.minHashes!=null)
+			return this.minHashes;
+		
+		int[] minHashes = new int[this.numHashes];
+		for (int iter=0; iter<this.numHashes; iter++)
+			minHashes[iter] = getMinHash(iter);
+		
+		return minHashes;
+	}
+	
+	public final int getNumBits()
+	{
+		return this.numBits;
 	}
 
+	/**
+	 * For b-bit min-hashes, two unrelated values collide with probability 2^-b, so the fraction of equal min-hashes P
+	 * is corrected to (P-2^-b)/(1-2^-b).
+	 */
 	public final double jaccard(MinHashSketch h)
 	{
 		int count = 0;
-		int size = this.minHashes.length;
+		int size = this.numHashes;
 		
-		if (h.minHashes.length!=size)
+		if (h.numHashes!=size)
 			throw new SketchRuntimeException("MinHashes must be of same length in order to be compared.");
+		if (h.numBits!=this.numBits)
+			throw new SketchRuntimeException("MinHashes must have the same number of bits in order to be compared.");
+		
+		if (this.minHashes!=null)
+		{
+			for (int iter=0; iter<size; iter++)
+			{
+				if (this.minHashes[iter]==h.minHashes[iter])
+					count++;
+			}
+			
+			return (double)count/(double)size;
+		}
 		
 		for (int iter=0; iter<size; iter++)
 		{
-			if (this.minHashes[iter]==h.minHashes[iter])
+			if (getMinHash(iter)==h.getMinHash(iter))
 				count++;
 		}
 		
-		return (double)count/(double)size;
+		double collisionProb = 1.0/(double)(1L<<this.numBits);
+		double sim = (double)count/(double)size;
+		
+		return Math.max(0.0, (sim-collisionProb)/(1.0-collisionProb));
 	}
 	
 	public final int numHashes()
 	{
-		return this.minHashes.length;
+		return this.numHashes;
+	}
+	
+	/**
+	 * Keeps only the lowest bits of each min-hash, packed into 64-bit words. Since the min-hashes are hash values, the
+	 * lowest bits are as good as any.
+	 * 
+	 * @param numBits
+	 *            bits kept per min-hash, must divide 64 and be at most the current number of bits
+	 * @return the packed sketch, or this sketch if it already has the requested number of bits
+	 */
+	public MinHashSketch pack(int numBits)
+	{
+		if (!isValidNumBits(numBits) || numBits>this.numBits)
+			throw new SketchRuntimeException("Cannot pack "+this.numBits+"-bit min-hashes into "+numBits+" bits.");
+		
+		if (numBits==this.numBits)
+			return this;
+		
+		long mask = (1L<<numBits)-1L;
+		long[] packedHashes = new long[numPackedWords(this.numHashes, numBits)];
+		for (int iter=0; iter<this.numHashes; iter++)
+		{
+			long bitIndex = (long)iter*(long)numBits;
+			packedHashes[(int)(bitIndex>>>6)] |= (getMinHash(iter) & mask) << (bitIndex & 63L);
+		}
+		
+		return new MinHashSketch(packedHashes, this.numHashes, numBits);
 	}
 	
 	@Override
@@ -268,6 +553,6 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 	@Override
 	public String toString()
 	{
-		return "MinHash "+Arrays.toString(this.minHashes) + "";
+		return "MinHash "+Arrays.toString(getMinHashArray()) + "";
 	}
 }
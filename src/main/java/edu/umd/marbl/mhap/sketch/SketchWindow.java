@@ -0,0 +1,88 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+/**
+ * Entries of a {@link BottomOverlapSketch} inside a position window, in hash order. The entries are either the whole
+ * sketch, or a copy of the entries inside the window into reusable buffers, so that the merges over a short overlap do
+ * not visit the whole sketch.
+ */
+final class SketchWindow
+{
+	private int[] hashBuffer;
+	int[] hashes;
+	int length;
+	private int[] orderBuffer;
+	private int[] positionBuffer;
+	int[] positions;
+
+	SketchWindow()
+	{
+		this.hashBuffer = new int[0];
+		this.positionBuffer = new int[0];
+		this.orderBuffer = new int[0];
+	}
+
+	/**
+	 * @param size
+	 *            the number of entries that will be copied
+	 * @return buffer for the indices of the copied entries
+	 */
+	int[] startCopy(int size)
+	{
+		// every entry can be preceded by a marker
+		if (this.hashBuffer.length < 2 * size)
+		{
+			this.hashBuffer = new int[4 * size];
+			this.positionBuffer = new int[4 * size];
+			this.orderBuffer = new int[2 * size];
+		}
+
+		this.hashes = this.hashBuffer;
+		this.positions = this.positionBuffer;
+		this.length = 0;
+
+		return this.orderBuffer;
+	}
+
+	void add(int hash, int position)
+	{
+		this.hashBuffer[this.length] = hash;
+		this.positionBuffer[this.length] = position;
+		this.length++;
+	}
+
+	void wrap(int[] hashes, int[] positions)
+	{
+		this.hashes = hashes;
+		this.positions = positions;
+		this.length = hashes.length;
+	}
+}
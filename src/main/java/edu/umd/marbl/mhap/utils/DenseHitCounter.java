@@ -0,0 +1,113 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.utils;
+
+import java.util.Arrays;
+
+/**
+ * Reusable hit counter over dense integer ids. Only the touched ids are reset on {@link #clear()}, so the counter can
+ * be reused for every query of a thread without reallocating or rescanning the full array.
+ */
+public final class DenseHitCounter
+{
+	private final int[] counts;
+	private int numTouched;
+	private int[] touched;
+	
+	public DenseHitCounter(int size)
+	{
+		this.counts = new int[size];
+		this.touched = new int[256];
+		this.numTouched = 0;
+	}
+	
+	public int addHit(int id)
+	{
+		return addHits(id, 1);
+	}
+	
+	public int addHits(int id, int hits)
+	{
+		int count = this.counts[id];
+		if (count == 0)
+		{
+			if (this.numTouched >= this.touched.length)
+				this.touched = Arrays.copyOf(this.touched, this.touched.length * 2);
+			
+			this.touched[this.numTouched] = id;
+			this.numTouched++;
+		}
+		
+		count += hits;
+		this.counts[id] = count;
+		
+		return count;
+	}
+	
+	/**
+	 * Counts the hit only if the id was already hit, so that no new ids are admitted.
+	 * 
+	 * @return the new count, or 0 if the id was not admitted
+	 */
+	public int addExistingHit(int id)
+	{
+		int count = this.counts[id];
+		if (count == 0)
+			return 0;
+		
+		count++;
+		this.counts[id] = count;
+		
+		return count;
+	}
+	
+	public void clear()
+	{
+		for (int iter = 0; iter < this.numTouched; iter++)
+			this.counts[this.touched[iter]] = 0;
+		
+		this.numTouched = 0;
+	}
+	
+	public int getCount(int id)
+	{
+		return this.counts[id];
+	}
+	
+	public int getTouched(int index)
+	{
+		return this.touched[index];
+	}
+	
+	public int numTouched()
+	{
+		return this.numTouched;
+	}
+}
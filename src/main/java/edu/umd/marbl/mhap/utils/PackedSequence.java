@@ -0,0 +1,158 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2014 by Konstantin Berlin and Sergey Koren
+ * University Of Maryland
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.utils;
+
+import java.util.Arrays;
+
+/**
+ * Nucleotide sequence stored with 4 bits per base, two bases per byte. Each base is a bit mask of A, C, G and T, so
+ * the IUPAC ambiguity codes are kept and the complement of a base is its reversed mask. Characters that are not
+ * IUPAC codes are stored as N, and bases are always returned in upper case.
+ */
+public final class PackedSequence implements CharSequence
+{
+	private final int length;
+	private final byte[] packed;
+
+	private static final byte[] CODES = new byte[128];
+	private static final byte[] COMPLEMENT_CODES = new byte[16];
+	private static final char[] BASES = "-ACMGRSVTWYHKDBN".toCharArray();
+	private static final byte UNKNOWN_CODE = 15;
+
+	static
+	{
+		Arrays.fill(CODES, UNKNOWN_CODE);
+		for (int code = 0; code < BASES.length; code++)
+		{
+			CODES[BASES[code]] = (byte) code;
+			CODES[Character.toLowerCase(BASES[code])] = (byte) code;
+		}
+		CODES['U'] = CODES['T'];
+		CODES['u'] = CODES['T'];
+
+		//reverse the A, C, G, T bits
+		for (int code = 0; code < 16; code++)
+			COMPLEMENT_CODES[code] = (byte) (((code & 1) << 3) | ((code & 2) << 1) | ((code & 4) >>> 1) | ((code & 8) >>> 3));
+	}
+
+	public static byte encode(char base)
+	{
+		return base < CODES.length ? CODES[base] : UNKNOWN_CODE;
+	}
+
+	/**
+	 * @param codes
+	 *            bases encoded with {@link #encode(char)}, one per byte
+	 * @param length
+	 *            the number of valid codes
+	 */
+	public PackedSequence(byte[] codes, int length)
+	{
+		this.length = length;
+		this.packed = new byte[(length + 1) / 2];
+
+		for (int iter = 0; iter < length; iter++)
+			this.packed[iter >>> 1] |= codes[iter] << ((iter & 1) << 2);
+	}
+
+	public PackedSequence(CharSequence sequence)
+	{
+		this.length = sequence.length();
+		this.packed = new byte[(this.length + 1) / 2];
+
+		for (int iter = 0; iter < this.length; iter++)
+			this.packed[iter >>> 1] |= encode(sequence.charAt(iter)) << ((iter & 1) << 2);
+	}
+
+	private PackedSequence(int length)
+	{
+		this.length = length;
+		this.packed = new byte[(length + 1) / 2];
+	}
+
+	@Override
+	public char charAt(int index)
+	{
+		return BASES[code(index)];
+	}
+
+	/**
+	 * @return the 4-bit mask of the base at the index
+	 */
+	public int code(int index)
+	{
+		if (index < 0 || index >= this.length)
+			throw new IndexOutOfBoundsException("Index " + index + " is out of range [0," + this.length + ").");
+
+		return (this.packed[index >>> 1] >>> ((index & 1) << 2)) & 15;
+	}
+
+	@Override
+	public int length()
+	{
+		return this.length;
+	}
+
+	public PackedSequence reverseCompliment()
+	{
+		PackedSequence rc = new PackedSequence(this.length);
+
+		for (int iter = 0; iter < this.length; iter++)
+		{
+			int rcIndex = this.length - 1 - iter;
+			rc.packed[rcIndex >>> 1] |= COMPLEMENT_CODES[code(iter)] << ((rcIndex & 1) << 2);
+		}
+
+		return rc;
+	}
+
+	@Override
+	public PackedSequence subSequence(int start, int end)
+	{
+		if (start < 0 || end > this.length || start > end)
+			throw new IndexOutOfBoundsException("Range [" + start + "," + end + ") is out of range [0," + this.length + ").");
+
+		PackedSequence sub = new PackedSequence(end - start);
+		for (int iter = start; iter < end; iter++)
+			sub.packed[(iter - start) >>> 1] |= code(iter) << (((iter - start) & 1) << 2);
+
+		return sub;
+	}
+
+	@Override
+	public String toString()
+	{
+		char[] bases = new char[this.length];
+		for (int iter = 0; iter < this.length; iter++)
+			bases[iter] = charAt(iter);
+
+		return new String(bases);
+	}
+}